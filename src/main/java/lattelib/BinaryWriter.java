@@ -0,0 +1,113 @@
+package lattelib;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes a patch in the binary frame format read by js/frames.js.
+ *
+ * Everything is little endian, and the arrays are laid out so the browser can
+ * read them with typed arrays directly:
+ *   header   8 x int32: magic, flags, base, frame, ops, floats, colors, texts
+ *   keys     int32[ops]
+ *   floats   float32[floats]
+ *   colors   uint32[colors]     0xrrggbb
+ *   lengths  uint32[texts]      byte length of each text
+ *   opcodes  uint8[ops]
+ *   text     utf-8, all texts back to back
+ * Each opcode takes its numbers, colors and texts from the arrays in order.
+ */
+class BinaryWriter {
+    static final int MAGIC = 0x3142544c; //"LTB1"
+    static final int FLAG_KEYFRAME = 1;
+
+    static final byte OP_REMOVE = 0;  //no data
+    //opcodes 1 to 63 are the Shape kinds: each shape's numbers, then its color
+    //(except images and sprites), then its text if it has one.  a batch has its count as
+    //its first number, then its numbers, then a color per shape.
+    static final byte OP_MARKUP = 64; //one text: the element's markup
+
+    private int[] keys = new int[256];
+    private byte[] opcodes = new byte[256];
+    private float[] floats = new float[1024];
+    private int[] colors = new int[256];
+    private int[] lengths = new int[16];
+    private byte[] text = new byte[1024];
+    private int ops, floatCount, colorCount, textCount, textBytes;
+    private ByteBuffer out = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+
+    void reset() {
+        ops = floatCount = colorCount = textCount = textBytes = 0;
+    }
+
+    BinaryWriter op(byte opcode, int key) {
+        if(ops == keys.length) {
+            keys = Arrays.copyOf(keys, ops * 2);
+            opcodes = Arrays.copyOf(opcodes, ops * 2);
+        }
+        keys[ops] = key;
+        opcodes[ops++] = opcode;
+        return this;
+    }
+
+    BinaryWriter number(double v) {
+        if(floatCount == floats.length) floats = Arrays.copyOf(floats, floatCount * 2);
+        floats[floatCount++] = (float) v;
+        return this;
+    }
+
+    BinaryWriter numbers(double[] v) {
+        if(floatCount + v.length > floats.length) floats = Arrays.copyOf(floats, Math.max(floats.length * 2, floatCount + v.length));
+        for(double d : v) floats[floatCount++] = (float) d;
+        return this;
+    }
+
+    BinaryWriter colors(int[] rgb) {
+        if(colorCount + rgb.length > colors.length) colors = Arrays.copyOf(colors, Math.max(colors.length * 2, colorCount + rgb.length));
+        System.arraycopy(rgb, 0, colors, colorCount, rgb.length);
+        colorCount += rgb.length;
+        return this;
+    }
+
+    BinaryWriter color(int rgb) {
+        if(colorCount == colors.length) colors = Arrays.copyOf(colors, colorCount * 2);
+        colors[colorCount++] = rgb;
+        return this;
+    }
+
+    BinaryWriter text(String s) {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        if(textCount == lengths.length) lengths = Arrays.copyOf(lengths, textCount * 2);
+        lengths[textCount++] = b.length;
+        if(textBytes + b.length > text.length) text = Arrays.copyOf(text, Math.max(text.length * 2, textBytes + b.length));
+        System.arraycopy(b, 0, text, textBytes, b.length);
+        textBytes += b.length;
+        return this;
+    }
+
+    /**
+     * lay everything out in one buffer.  the buffer is reused by the next call,
+     * so send it before writing the next frame.
+     */
+    ByteBuffer finish(boolean keyframe, int base, int frame) {
+        int size = 32 + 4 * (ops + floatCount + colorCount + textCount) + ops + textBytes;
+        if(out.capacity() < size) out = ByteBuffer.allocate(Math.max(size, out.capacity() * 2)).order(ByteOrder.LITTLE_ENDIAN);
+        out.clear();
+        out.putInt(MAGIC).putInt(keyframe ? FLAG_KEYFRAME : 0).putInt(base).putInt(frame)
+                .putInt(ops).putInt(floatCount).putInt(colorCount).putInt(textCount);
+        out.asIntBuffer().put(keys, 0, ops);
+        out.position(out.position() + 4 * ops);
+        out.asFloatBuffer().put(floats, 0, floatCount);
+        out.position(out.position() + 4 * floatCount);
+        out.asIntBuffer().put(colors, 0, colorCount);
+        out.position(out.position() + 4 * colorCount);
+        out.asIntBuffer().put(lengths, 0, textCount);
+        out.position(out.position() + 4 * textCount);
+        out.put(opcodes, 0, ops);
+        out.put(text, 0, textBytes);
+        out.flip();
+        return out;
+    }
+}
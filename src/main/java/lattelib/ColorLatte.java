@@ -151,6 +151,7 @@ public class ColorLatte {
     final static public ColorLatte YellowGreen = new ColorLatte("#9ACD32");
 
     private int r, g, b;
+    private String hex; //toString() is called for every shape drawn, so only format once
 
     public ColorLatte(int r, int g, int b) {
         this.r=r;
@@ -171,7 +172,8 @@ public class ColorLatte {
     }
 
     public String toString() {
-        return String.format("#%02x%02x%02x", this.getRed(), this.getGreen(), this.getBlue());
+        if(hex == null) hex = String.format("#%02x%02x%02x", this.getRed(), this.getGreen(), this.getBlue());
+        return hex;
     }
 
     public int getRed() {
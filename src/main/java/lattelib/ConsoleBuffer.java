@@ -0,0 +1,114 @@
+package lattelib;
+
+import org.json.JSONObject;
+
+import java.util.Arrays;
+
+/**
+ * What println printed that the browser hasn't got yet.
+ *
+ * Lines go into a ring of CAPACITY lines, and a thread of its own sends
+ * them in one "cbat" message every FLUSH_MILLIS, so println never waits for
+ * the browser.  If the program prints faster than they can go out, the
+ * oldest lines not sent yet are overwritten and the browser is told how many
+ * it missed: a program printing in a loop uses the same memory, and sends the
+ * same number of messages, however much it prints.
+ */
+class ConsoleBuffer {
+    static final int CAPACITY = 4096;
+    static final long FLUSH_MILLIS = 50;
+
+    private final SparkServer server;
+    private final Object sending = new Object(); //keeps the batches, clears and input requests in order
+    private final String[] ring = new String[CAPACITY];
+    private int start, size;
+    private long dropped;
+    private Thread flusher;
+
+    ConsoleBuffer(SparkServer server) {
+        this.server = server;
+    }
+
+    /**
+     * print a line, soon
+     */
+    synchronized void add(String line) {
+        if(size == CAPACITY) {
+            ring[start] = null;
+            start = (start + 1) % CAPACITY;
+            size--;
+            dropped++;
+        }
+        ring[(start + size++) % CAPACITY] = line;
+        if(flusher == null) {
+            flusher = new Thread(this::flushLoop, "console-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * send what was printed so far, then this message
+     */
+    void sendAfter(String type, String payload) {
+        synchronized (sending) {
+            flush();
+            server.sendMessage(type, payload);
+        }
+    }
+
+    /**
+     * forget what wasn't sent yet, and clear the browser's console
+     */
+    void clear() {
+        synchronized (sending) {
+            synchronized (this) {
+                Arrays.fill(ring, null);
+                start = size = 0;
+                dropped = 0;
+            }
+            server.sendMessage("cocl", "");
+        }
+    }
+
+    /**
+     * send everything printed so far in one message
+     */
+    void flush() {
+        synchronized (sending) {
+            String[] lines;
+            long missed;
+            synchronized (this) {
+                if(size == 0 && dropped == 0) return;
+                lines = new String[size];
+                for(int i = 0; i < size; i++) {
+                    lines[i] = ring[(start + i) % CAPACITY];
+                    ring[(start + i) % CAPACITY] = null;
+                }
+                start = size = 0;
+                missed = dropped;
+                dropped = 0;
+            }
+            JSONObject batch = new JSONObject();
+            batch.put("lines", Arrays.asList(lines));
+            batch.put("dropped", missed);
+            server.sendMessage("cbat", batch);
+        }
+    }
+
+    private void flushLoop() {
+        while(true) {
+            try {
+                synchronized (this) {
+                    while(size == 0 && dropped == 0) wait();
+                }
+                flush();
+                Thread.sleep(FLUSH_MILLIS); //whatever is printed meanwhile goes out together
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+}
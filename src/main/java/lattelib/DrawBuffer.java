@@ -0,0 +1,124 @@
+package lattelib;
+
+import org.apache.batik.dom.AbstractAttr;
+import org.apache.batik.dom.AbstractElement;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Shapes drawn on a thread other than the drawing thread, kept in the order
+ * they were drawn until the drawing thread adds them to the drawing.  Only
+ * the drawing thread touches the scene and its document, so the other threads
+ * never have to wait for each other: they each fill their own buffer, with
+ * elements made in a document of their own.
+ *
+ * That document has no mutation events, so nobody hears when whoever drew a
+ * shape changes its element before it is added.  What each element looked
+ * like when it was drawn is kept, and an element that changed since is added
+ * without its Shape, so its markup is sent instead of numbers that are wrong.
+ */
+class DrawBuffer {
+    final long order; //buffers are added to the drawing in this order
+    final Thread thread; //the thread drawing into it, null for a part of drawInParallel
+
+    private List<Element> elements = new ArrayList<Element>();
+    private List<Shape> shapes = new ArrayList<Shape>();
+    private List<String> layers = new ArrayList<String>();
+    private List<String[]> drawn = new ArrayList<String[]>(); //each element as it was drawn, null without a shape
+
+    DrawBuffer(long order, Thread thread) {
+        this.order = order;
+        this.thread = thread;
+    }
+
+    synchronized void add(Element e, Shape shape, String layer) {
+        elements.add(e);
+        shapes.add(shape);
+        layers.add(layer);
+        drawn.add(shape == null ? null : state(e));
+    }
+
+    synchronized boolean isEmpty() {
+        return elements.isEmpty();
+    }
+
+    /**
+     * move everything drawn so far into the drawing's document and add it to
+     * the scene, each into the layer that was being drawn into when it was
+     * drawn, and empty the buffer
+     */
+    synchronized void drainTo(Scene scene, Document doc) {
+        if(elements.isEmpty()) return;
+        String current = scene.getLayer();
+        for(int i = 0; i < elements.size(); i++) {
+            Element e = elements.get(i);
+            if(e.getOwnerDocument() != doc) adopt(doc, e); //the same element, so whoever drew it can keep it
+            Shape shape = shapes.get(i);
+            if(shape != null && !Arrays.equals(drawn.get(i), state(e))) {
+                //changed since it was drawn
+                if(shape.isBatch()) SvgWriter.expand(shape, e);
+                shape = null;
+            }
+            scene.setLayer(layers.get(i));
+            scene.add(e, shape);
+        }
+        scene.setLayer(current);
+        elements.clear();
+        shapes.clear();
+        layers.clear();
+        drawn.clear();
+    }
+
+    /**
+     * the names, attributes and text of an element and everything inside it,
+     * one after the other
+     */
+    private static String[] state(Element e) {
+        List<String> state = new ArrayList<String>();
+        state(e, state);
+        return state.toArray(new String[state.size()]);
+    }
+
+    private static void state(Node n, List<String> state) {
+        state.add(n.getNodeName());
+        NamedNodeMap attributes = n.getAttributes();
+        if(attributes == null) {
+            state.add(n.getNodeValue());
+            return;
+        }
+        for(int i = 0; i < attributes.getLength(); i++) {
+            Node a = attributes.item(i);
+            state.add(a.getNodeName());
+            state.add(a.getNodeValue());
+        }
+        for(Node child = n.getFirstChild(); child != null; child = child.getNextSibling()) state(child, state);
+        state.add(null); //the end of its children
+    }
+
+    /**
+     * move an element into another document.  batik's adoptNode leaves the
+     * attributes without their element, so changes to them wouldn't be
+     * noticed; they are given back.
+     */
+    private static void adopt(Document doc, Element e) {
+        doc.adoptNode(e);
+        owners(e);
+    }
+
+    private static void owners(Element e) {
+        NamedNodeMap attributes = e.getAttributes();
+        for(int i = 0; i < attributes.getLength(); i++) {
+            Node a = attributes.item(i);
+            if(a instanceof AbstractAttr && e instanceof AbstractElement) ((AbstractAttr) a).setOwnerElement((AbstractElement) e);
+        }
+        for(Node n = e.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if(n.getNodeType() == Node.ELEMENT_NODE) owners((Element) n);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package lattelib;
+
+import org.apache.batik.dom.AbstractDocument;
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps the elements of the last frame around so the draw functions can use
+ * them again instead of making new ones.
+ *
+ * Elements are handed out by tag, in the order they were drawn: the third rect
+ * drawn this frame is the element that was the third rect last frame.  So a
+ * program that draws the same things every frame gets the same elements back,
+ * and mostly just changes their numbers.  Only elements made by the pool are
+ * taken back; anything from drawSVGElement is simply dropped.
+ */
+class ElementPool {
+    private static final String POOLED = "lattelib.pooled";
+
+    //attributes the draw functions always set, so they can stay; everything
+    //else (a transform, a class added by hand...) is taken off before reuse
+    private static final Map<String, Set<String>> KEEP = new HashMap<String, Set<String>>();
+    static {
+        keep("rect", "x", "y", "width", "height", "fill");
+        keep("circle", "cx", "cy", "r", "fill");
+        keep("ellipse", "cx", "cy", "rx", "ry", "fill");
+        keep("line", "x1", "y1", "x2", "y2", "stroke", "stroke-width");
+        keep("polyline", "points", "fill", "stroke", "stroke-width");
+        keep("text", "x", "y", "font-size", "style");
+        keep("image", "width", "height", "xlink:href");
+        keep("svg", "x", "y", "width", "height", "viewBox");
+        keep("g");
+    }
+
+    private static void keep(String tag, String... attributes) {
+        KEEP.put(tag, new HashSet<String>(Arrays.asList(attributes)));
+    }
+
+    private static class Bin {
+        List<Element> free = new ArrayList<Element>();
+        List<Element> returned = new ArrayList<Element>();
+        int next;
+    }
+
+    private final Map<String, Bin> bins = new HashMap<String, Bin>();
+
+    /**
+     * an element to draw with: last frame's, or a new one if there are none left
+     */
+    Element get(Document doc, String ns, String tag) {
+        Bin bin = bins.get(tag);
+        if(bin != null && bin.next < bin.free.size()) {
+            Element e = bin.free.get(bin.next);
+            bin.free.set(bin.next++, null);
+            boolean events = events(doc, false);
+            strip(e, tag);
+            events(doc, events);
+            return e;
+        }
+        Element e = doc.createElementNS(ns, tag);
+        e.setUserData(POOLED, Boolean.TRUE, null);
+        return e;
+    }
+
+    /**
+     * take everything out of the root and keep what can be used again, in order
+     */
+    void recycle(Element root) {
+        boolean events = events(root.getOwnerDocument(), false);
+        take(root);
+        while(root.getFirstChild() != null) root.removeChild(root.getFirstChild());
+        events(root.getOwnerDocument(), events);
+        for(Bin bin : bins.values()) {
+            //this frame's elements first, then whatever wasn't used this time
+            for(int i = bin.next; i < bin.free.size(); i++) bin.returned.add(bin.free.get(i));
+            List<Element> free = bin.returned;
+            bin.returned = bin.free;
+            bin.returned.clear();
+            bin.free = free;
+            bin.next = 0;
+        }
+    }
+
+    /**
+     * turn batik's mutation events on or off.  nobody needs to hear about
+     * elements that aren't in the drawing, and the events are most of the
+     * cost of changing them (every attribute value is a text node in batik).
+     * @return whether they were on
+     */
+    static boolean events(Document doc, boolean on) {
+        if(!(doc instanceof AbstractDocument)) return false;
+        AbstractDocument d = (AbstractDocument) doc;
+        boolean was = d.getEventsEnabled();
+        d.setEventsEnabled(on);
+        return was;
+    }
+
+    private void take(Element parent) {
+        for(Node n = parent.getFirstChild(); n != null; ) {
+            Node next = n.getNextSibling();
+            if(n.getNodeType() == Node.ELEMENT_NODE) {
+                parent.removeChild(n);
+                Element e = (Element) n;
+                if(e.getUserData(POOLED) != null) {
+                    Bin bin = bins.get(e.getTagName());
+                    if(bin == null) bins.put(e.getTagName(), bin = new Bin());
+                    bin.returned.add(e);
+                    take(e);
+                }
+            }
+            n = next;
+        }
+    }
+
+    /**
+     * make an element look like it was just made, except for the attributes
+     * it is about to get anyway.  a lone text node is kept for drawText.
+     */
+    private static void strip(Element e, String tag) {
+        Set<String> keep = KEEP.get(tag);
+        NamedNodeMap attributes = e.getAttributes();
+        for(int i = attributes.getLength() - 1; i >= 0; i--) {
+            Attr a = (Attr) attributes.item(i);
+            if(keep == null || !keep.contains(a.getNodeName())) e.removeAttributeNode(a);
+        }
+        Node first = e.getFirstChild();
+        if(first != null && (first.getNodeType() != Node.TEXT_NODE || first.getNextSibling() != null)) {
+            while(e.getFirstChild() != null) e.removeChild(e.getFirstChild());
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package lattelib;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.IntStream;
+
+/**
+ * Works out what changed in the drawing since the last frame the browser has,
+ * and packs only that into a patch.
+ *
+ * Every shape in the Scene has a key.  A patch is a list of operations on keys:
+ *   ["u", key, markup]   create or replace the shape with that key
+ *   ["r", key]           remove the shape with that key
+ * The browser keeps its shapes sorted by key.  "base" is the frame the patch
+ * applies on top of; a base of -1 means the browser should throw away what it
+ * has and start over (a keyframe).  Patches go out as json "svgp" messages, or
+ * in the binary format written by BinaryWriter.
+ *
+ * collect() goes through the layers that have shapes the Scene marked dirty
+ * and keeps what really changed: shapes drawn with the draw functions are
+ * compared by their numbers, anything else by its markup.  Runs of untouched
+ * rectangles, circles or lines of the same style, one after the other, are
+ * merged into one batch under the first one's key, so the browser gets one
+ * node (one path per color, see SvgWriter) instead of one per shape.  Shapes
+ * that were changed by hand, like clickable ones, are never merged.  A layer
+ * with only a few changed keys isn't gone through again: each run is sent
+ * under the key it starts at, so only the runs next to a changed key are
+ * worked out again, and a frame with one change costs about the same however
+ * big the drawing is.  Changes collected over several frames
+ * are merged per key until flush() writes them out, so a frame that could not
+ * be sent yet just folds into the next one.
+ *
+ * Shapes drawn with the draw functions that are completely outside the
+ * browser's window are culled: left out of the frame (or removed from the
+ * browser) until they change or the window grows to show them.  Culled shapes
+ * are kept here, so a resize can send them without going back to the Scene.
+ *
+ * The keys of each layer (see Scene) are a range of their own.  A layer
+ * nobody draws into is never looked at again: the browser keeps its shapes
+ * and frames carry only the layers that changed.  Big frames are written a
+ * chunk of a layer at a time, on the common ForkJoin pool.
+ *
+ * flush() swaps the pending changes for an empty map and writes them out
+ * without holding the lock, so the program can collect the next frame while
+ * this one is being written and sent.  Only one thread flushes at a time.
+ */
+class FrameEncoder {
+    private static final Object REMOVED = new Object();
+    private static final int CHUNK = 1024; //ops per task when a frame is written in parallel
+    private static final int MAX_RUN = 256; //shapes merged into one batch at most, so a change doesn't resend too much
+    private static final int FEW_CHANGES = 64; //changed keys in a layer, at most, to only look at the runs around them
+
+    private final TreeMap<Integer, Object> sent = new TreeMap<Integer, Object>(); //what the browser has (or will have), by key
+    private Map<Integer, Object> pending = new LinkedHashMap<Integer, Object>(); //Shape or markup to send, or REMOVED
+    private Map<Integer, Object> flushing = new LinkedHashMap<Integer, Object>(); //what flush() is writing out
+    private final TreeMap<Integer, Shape> culled = new TreeMap<Integer, Shape>(); //outside the window, not in the browser
+    private final List<Integer> revealed = new ArrayList<Integer>(); //culled shapes sent on their own since the last collect
+    private final Map<Integer, Object> wanted = new LinkedHashMap<Integer, Object>(); //what the layer being collected should be
+    private final List<Shape> run = new ArrayList<Shape>(); //shapes of the same style in a row, to be merged
+    private final SvgWriter markup = new SvgWriter();
+    private final SvgWriter shapeMarkup = new SvgWriter();
+    private final SvgWriter out = new SvgWriter();
+    private final BinaryWriter binaryOut = new BinaryWriter();
+    private final List<SvgWriter[]> chunkWriters = new ArrayList<SvgWriter[]>(); //a writer and a scratch writer per chunk
+    private int frame = -1;
+    private boolean keyframe = true;
+    private boolean pendingKeyframe;
+    private volatile boolean binary;
+    private boolean culling = true;
+    private double viewWidth, viewHeight; //0 until the browser says how big it is
+
+    /**
+     * pick up the changes in the scene and mark it clean
+     */
+    synchronized void collect(Scene scene) {
+        if(keyframe) {
+            keyframe = false;
+            pendingKeyframe = true;
+            pending.clear();
+            sent.clear();
+            culled.clear();
+            revealed.clear();
+            for(int layer = 0; layer < scene.layerCount(); layer++) collectLayer(scene, layer);
+        } else {
+            //the keys that changed, by layer, for the layers with only a few
+            int[] counts = new int[Scene.MAX_LAYERS];
+            for(int key : revealed) counts[key >>> Scene.LAYER_SHIFT]++;
+            for(int key : scene.removed()) counts[key >>> Scene.LAYER_SHIFT]++;
+            for(Scene.Slot s : scene.dirty()) counts[s.key >>> Scene.LAYER_SHIFT]++;
+            int[][] changed = new int[Scene.MAX_LAYERS][];
+            for(int layer = 0; layer < counts.length; layer++) {
+                if(counts[layer] > 0 && counts[layer] <= FEW_CHANGES) changed[layer] = new int[counts[layer]];
+            }
+            int[] filled = new int[Scene.MAX_LAYERS];
+            for(int key : revealed) {
+                int layer = key >>> Scene.LAYER_SHIFT;
+                if(changed[layer] != null) changed[layer][filled[layer]++] = key;
+            }
+            revealed.clear();
+            for(int key : scene.removed()) {
+                int layer = key >>> Scene.LAYER_SHIFT;
+                if(changed[layer] != null) changed[layer][filled[layer]++] = key;
+            }
+            for(Scene.Slot s : scene.dirty()) {
+                int layer = s.key >>> Scene.LAYER_SHIFT;
+                if(changed[layer] != null) changed[layer][filled[layer]++] = s.key;
+            }
+            for(int layer = 0; layer < counts.length; layer++) {
+                if(counts[layer] == 0) continue;
+                if(layer >= scene.layerCount()) {
+                    forget(layer);
+                } else if(changed[layer] != null) {
+                    Arrays.sort(changed[layer]);
+                    collectAround(scene, layer, changed[layer]);
+                } else {
+                    collectLayer(scene, layer);
+                }
+            }
+        }
+        scene.markClean();
+    }
+
+    /**
+     * work out what the browser should have for one layer, merging runs of
+     * shapes of the same style, and patch what it has to match
+     */
+    private void collectLayer(Scene scene, int layer) {
+        int from = layer << Scene.LAYER_SHIFT, to = (layer + 1) << Scene.LAYER_SHIFT;
+        begin(from, to);
+        int runKey = 0;
+        for(Scene.Slot s : scene.slots(layer)) runKey = visit(s, runKey);
+        end(runKey, from, to);
+    }
+
+    /**
+     * the same for just a few changed keys: only the runs around them are
+     * worked out again.  each run is in sent under the key it starts at, so
+     * the slots from the start of the run before a changed key to the start
+     * of the second run after it are all that can be merged differently.
+     * @param keys the changed keys, in order
+     */
+    private void collectAround(Scene scene, int layer, int[] keys) {
+        NavigableMap<Integer, Object> sentLayer = sentLayer(layer);
+        int layerStart = layer << Scene.LAYER_SHIFT, layerEnd = scene.endKey(layer);
+        int from = -1, to = -1;
+        for(int key : keys) {
+            Integer start = sentLayer.floorKey(key);
+            Integer before = start == null ? null : sentLayer.lowerKey(start);
+            Integer next = sentLayer.higherKey(key);
+            Integer after = next == null ? null : sentLayer.higherKey(next);
+            int a = before != null ? before : layerStart, b = Math.max(after != null ? after : layerEnd, key + 1);
+            if(a > to) {
+                if(to > from) collectRange(scene, from, to);
+                from = a;
+            }
+            to = Math.max(to, b);
+        }
+        collectRange(scene, from, to);
+    }
+
+    /**
+     * work out the keys from one run start up to the next again
+     */
+    private void collectRange(Scene scene, int from, int to) {
+        begin(from, to);
+        int runKey = 0;
+        for(int key = from; key < to; key++) {
+            Scene.Slot s = scene.slot(key);
+            if(s != null) runKey = visit(s, runKey);
+        }
+        end(runKey, from, to);
+    }
+
+    private void begin(int from, int to) {
+        wanted.clear();
+        run.clear();
+        culled.subMap(from, to).clear();
+    }
+
+    /**
+     * put a slot in a run, in wanted or with the culled shapes
+     * @return the key of the run being made
+     */
+    private int visit(Scene.Slot s, int runKey) {
+        Shape shape = s.shape;
+        if(shape != null && s.cullable && !visible(shape)) {
+            culled.put(s.key, shape);
+            return runKey;
+        }
+        if(shape != null && shape.isMergeable()) {
+            if(!run.isEmpty() && (!run.get(0).sameStyle(shape) || run.size() == MAX_RUN)) endRun(runKey);
+            if(run.isEmpty()) runKey = s.key;
+            run.add(shape);
+            return runKey;
+        }
+        endRun(runKey);
+        if(shape != null) {
+            wanted.put(s.key, shape);
+            return runKey;
+        }
+        Object old = sent.get(s.key);
+        if(!s.dirty && old instanceof String) {
+            wanted.put(s.key, old); //unchanged since it was written
+            return runKey;
+        }
+        markup.reset();
+        markup.element(s.element);
+        wanted.put(s.key, old instanceof String && markup.contentEquals((String) old) ? old : markup.toString());
+        return runKey;
+    }
+
+    /**
+     * patch what the browser has from one key up to another to match wanted
+     */
+    private void end(int runKey, int from, int to) {
+        endRun(runKey);
+        for(Iterator<Map.Entry<Integer, Object>> i = sent.subMap(from, to).entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Integer, Object> e = i.next();
+            if(wanted.containsKey(e.getKey())) continue;
+            pending.put(e.getKey(), REMOVED);
+            i.remove(); //after: removing from a TreeMap can change what the entry holds
+        }
+        for(Map.Entry<Integer, Object> e : wanted.entrySet()) {
+            Object old = sent.put(e.getKey(), e.getValue());
+            if(!e.getValue().equals(old)) pending.put(e.getKey(), e.getValue());
+        }
+    }
+
+    private void endRun(int key) {
+        if(run.isEmpty()) return;
+        wanted.put(key, run.size() == 1 ? run.get(0) : Shape.merge(run));
+        run.clear();
+    }
+
+    /**
+     * a layer that isn't in the scene any more (the drawing started over)
+     */
+    private void forget(int layer) {
+        for(int key : sentLayer(layer).keySet()) pending.put(key, REMOVED);
+        sentLayer(layer).clear();
+        culled.subMap(layer << Scene.LAYER_SHIFT, (layer + 1) << Scene.LAYER_SHIFT).clear();
+    }
+
+    /**
+     * what the browser has in one layer.  a view of sent.
+     */
+    private NavigableMap<Integer, Object> sentLayer(int layer) {
+        return sent.subMap(layer << Scene.LAYER_SHIFT, true, (layer + 1) << Scene.LAYER_SHIFT, false);
+    }
+
+    private boolean visible(Shape shape) {
+        return !culling || viewWidth <= 0 || shape.overlaps(viewWidth, viewHeight);
+    }
+
+    /**
+     * the browser's window changed size: send the culled shapes it now shows.
+     * shapes it no longer shows are only culled once they change.  a shape
+     * sent like this can be in the middle of a run, so the next collect()
+     * works out the runs around it again.
+     */
+    synchronized void setViewport(double width, double height) {
+        viewWidth = width;
+        viewHeight = height;
+        reveal();
+    }
+
+    synchronized void setCulling(boolean culling) {
+        this.culling = culling;
+        reveal();
+    }
+
+    private void reveal() {
+        for(Iterator<Map.Entry<Integer, Shape>> i = culled.entrySet().iterator(); i.hasNext(); ) {
+            Map.Entry<Integer, Shape> c = i.next();
+            if(!visible(c.getValue())) continue;
+            sent.put(c.getKey(), c.getValue());
+            pending.put(c.getKey(), c.getValue());
+            revealed.add(c.getKey());
+            i.remove();
+        }
+    }
+
+    synchronized boolean hasPending() {
+        return pendingKeyframe || !pending.isEmpty();
+    }
+
+    /**
+     * send patches in the binary format instead of json
+     */
+    void setBinary(boolean binary) {
+        this.binary = binary;
+    }
+
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * write everything collected so far as one "svgp" message
+     * @return the message, or null if nothing changed.  the buffer is reused
+     * by the next call, so send it before flushing again.
+     */
+    CharSequence flush() {
+        int base, next;
+        synchronized (this) {
+            if(!hasPending()) return null;
+            base = pendingKeyframe ? -1 : frame;
+            next = frame + 1;
+            done();
+        }
+
+        out.reset();
+        out.append("{\"type\":\"svgp\",\"payload\":{\"base\":").append(base)
+                .append(",\"frame\":").append(next)
+                .append(",\"ops\":[");
+        if(flushing.size() < 2 * CHUNK) {
+            writeOps(flushing.entrySet(), out, shapeMarkup);
+        } else {
+            //big frames are written in parallel, a chunk of each changed layer at a time
+            List<List<Map.Entry<Integer, Object>>> chunks = chunks();
+            while(chunkWriters.size() < chunks.size()) chunkWriters.add(new SvgWriter[]{new SvgWriter(), new SvgWriter()});
+            IntStream.range(0, chunks.size()).parallel().forEach(i -> {
+                SvgWriter[] w = chunkWriters.get(i);
+                w[0].reset();
+                writeOps(chunks.get(i), w[0], w[1]);
+            });
+            for(int i = 0; i < chunks.size(); i++) {
+                if(i > 0) out.append(',');
+                out.buffer().append(chunkWriters.get(i)[0].buffer());
+            }
+        }
+        out.append("]}}");
+        flushing.clear();
+        return out.buffer();
+    }
+
+    private static void writeOps(Iterable<Map.Entry<Integer, Object>> ops, SvgWriter out, SvgWriter scratch) {
+        boolean first = true;
+        for(Map.Entry<Integer, Object> op : ops) {
+            if(!first) out.append(',');
+            first = false;
+            Object v = op.getValue();
+            if(v == REMOVED) {
+                out.append("[\"r\",").append(op.getKey()).append(']');
+            } else if(v instanceof Shape) {
+                scratch.reset();
+                scratch.shape((Shape) v);
+                out.append("[\"u\",").append(op.getKey()).append(',').jsonString(scratch.buffer()).append(']');
+            } else {
+                out.append("[\"u\",").append(op.getKey()).append(',').jsonString((String) v).append(']');
+            }
+        }
+    }
+
+    /**
+     * the ops being flushed, by layer, in chunks of at most CHUNK
+     */
+    private List<List<Map.Entry<Integer, Object>>> chunks() {
+        Map<Integer, List<Map.Entry<Integer, Object>>> layers = new TreeMap<Integer, List<Map.Entry<Integer, Object>>>();
+        for(Map.Entry<Integer, Object> op : flushing.entrySet()) {
+            int layer = op.getKey() >>> Scene.LAYER_SHIFT;
+            List<Map.Entry<Integer, Object>> ops = layers.get(layer);
+            if(ops == null) layers.put(layer, ops = new ArrayList<Map.Entry<Integer, Object>>());
+            ops.add(op);
+        }
+        List<List<Map.Entry<Integer, Object>>> chunks = new ArrayList<List<Map.Entry<Integer, Object>>>();
+        for(List<Map.Entry<Integer, Object>> ops : layers.values()) {
+            for(int i = 0; i < ops.size(); i += CHUNK) chunks.add(ops.subList(i, Math.min(i + CHUNK, ops.size())));
+        }
+        return chunks;
+    }
+
+    /**
+     * write everything collected so far as one binary frame
+     * @return the frame, or null if nothing changed.  the buffer is reused
+     * by the next call, so send it before flushing again.
+     */
+    ByteBuffer flushBinary() {
+        boolean keyframe;
+        int base, next;
+        synchronized (this) {
+            if(!hasPending()) return null;
+            keyframe = pendingKeyframe;
+            base = pendingKeyframe ? -1 : frame;
+            next = frame + 1;
+            done();
+        }
+
+        binaryOut.reset();
+        for(Map.Entry<Integer, Object> op : flushing.entrySet()) {
+            Object v = op.getValue();
+            if(v == REMOVED) {
+                binaryOut.op(BinaryWriter.OP_REMOVE, op.getKey());
+            } else if(v instanceof Shape) {
+                Shape s = (Shape) v;
+                binaryOut.op((byte) s.kind, op.getKey());
+                if(s.isBatch()) {
+                    binaryOut.number(s.colors.length).numbers(s.v).colors(s.colors);
+                    continue;
+                }
+                binaryOut.numbers(s.v);
+                if(s.hasColor()) binaryOut.color(s.rgb);
+                if(s.text != null) binaryOut.text(s.text);
+            } else {
+                binaryOut.op(BinaryWriter.OP_MARKUP, op.getKey()).text((String) v);
+            }
+        }
+        flushing.clear();
+        return binaryOut.finish(keyframe, base, next);
+    }
+
+    /**
+     * hand the pending changes over to flushing, and start on the next frame
+     */
+    private void done() {
+        Map<Integer, Object> ops = pending;
+        pending = flushing;
+        flushing = ops;
+        pendingKeyframe = false;
+        frame++;
+    }
+
+    /**
+     * the browser lost track of the drawing (e.g. it missed a frame), so the
+     * next frame collected must carry everything
+     */
+    synchronized void resync() {
+        keyframe = true;
+    }
+
+    synchronized int lastFrame() {
+        return frame;
+    }
+}
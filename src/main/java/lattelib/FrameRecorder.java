@@ -0,0 +1,133 @@
+package lattelib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes everything sent to and received from the browser to a file, to be
+ * played back later by FrameReplayer.
+ *
+ * The file starts with a header:
+ *   "LTRC", version (int32), wall clock time the recording started (int64 millis)
+ * and then one record per message, appended as it happens:
+ *   kind (uint8), nanoseconds since the start (int64), length (int32), the message
+ * text messages are utf-8.  everything is big endian.
+ */
+class FrameRecorder implements Closeable {
+    static final int MAGIC = 0x4c545243; //"LTRC"
+    static final int VERSION = 1;
+    static final int HEADER = 16, RECORD_HEADER = 13;
+
+    static final byte SENT_TEXT = 0, SENT_BINARY = 1, RECEIVED_TEXT = 2;
+
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocateDirect(1 << 18);
+    private final CharsetEncoder utf8 = StandardCharsets.UTF_8.newEncoder();
+    private final long start = System.nanoTime();
+    private final Thread closeOnExit = new Thread(this::close, "frame-recorder");
+    private boolean closed;
+
+    FrameRecorder(String file) throws IOException {
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        buf.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis());
+        //the program usually ends with System.exit when the browser closes
+        Runtime.getRuntime().addShutdownHook(closeOnExit);
+    }
+
+    synchronized void text(byte kind, CharSequence message) {
+        if(closed) return;
+        try {
+            room(RECORD_HEADER);
+            int header = buf.position();
+            buf.put(kind).putLong(System.nanoTime() - start).putInt(0);
+            long length = 0;
+            //encode straight into the buffer.  if it fills up, it is written out
+            //and the length is filled in afterwards, in the file (header = -1)
+            CharBuffer in = CharBuffer.wrap(message);
+            utf8.reset();
+            while(true) {
+                int before = buf.position();
+                CoderResult r = utf8.encode(in, buf, true);
+                length += buf.position() - before;
+                if(r.isUnderflow()) break;
+                flush();
+                header = -1;
+            }
+            while(true) {
+                int before = buf.position();
+                CoderResult r = utf8.flush(buf);
+                length += buf.position() - before;
+                if(r.isUnderflow()) break;
+                flush();
+                header = -1;
+            }
+            if(header >= 0) {
+                buf.putInt(header + 9, (int) length);
+            } else {
+                //the header was already written out, go back and fill in the length
+                flush();
+                long end = channel.position();
+                channel.write((ByteBuffer) ByteBuffer.allocate(4).putInt((int) length).flip(), end - length - 4);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    synchronized void binary(ByteBuffer message) {
+        if(closed) return;
+        try {
+            ByteBuffer data = message.duplicate();
+            room(RECORD_HEADER);
+            buf.put(SENT_BINARY).putLong(System.nanoTime() - start).putInt(data.remaining());
+            if(data.remaining() > buf.remaining()) {
+                flush();
+                while(data.hasRemaining()) channel.write(data);
+            } else {
+                buf.put(data);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            close();
+        }
+    }
+
+    /**
+     * write out the buffer if it doesn't have this much room left
+     */
+    private void room(int bytes) throws IOException {
+        if(buf.remaining() < bytes) flush();
+    }
+
+    private void flush() throws IOException {
+        buf.flip();
+        while(buf.hasRemaining()) channel.write(buf);
+        buf.clear();
+    }
+
+    public synchronized void close() {
+        if(closed) return;
+        closed = true;
+        try {
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        try {
+            Runtime.getRuntime().removeShutdownHook(closeOnExit);
+        } catch (IllegalStateException e) {
+            //already shutting down, this is the hook
+        }
+    }
+}
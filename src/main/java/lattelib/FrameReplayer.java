@@ -0,0 +1,179 @@
+package lattelib;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Plays back a recording made with WebLatte.startRecording, to a browser or
+ * to your own code (for benchmarks).
+ *
+ * The file is memory mapped, so nothing is copied: every message is handed
+ * over as a slice of the file.
+ *
+ * From the command line:
+ *   java lattelib.FrameReplayer recording.ltr          play it to a browser, at the original speed
+ *   java lattelib.FrameReplayer recording.ltr fast     play it to a browser as fast as it can go
+ *   java lattelib.FrameReplayer recording.ltr bench    read it as fast as possible and print the time
+ */
+public class FrameReplayer implements Closeable {
+    public static final int SENT_TEXT = FrameRecorder.SENT_TEXT;
+    public static final int SENT_BINARY = FrameRecorder.SENT_BINARY;
+    public static final int RECEIVED_TEXT = FrameRecorder.RECEIVED_TEXT;
+
+    private static final long WINDOW = 1L << 30; //how much of the file is mapped at a time
+
+    /**
+     * gets every message of the recording, in order
+     */
+    public interface Handler {
+        /**
+         * @param kind SENT_TEXT, SENT_BINARY or RECEIVED_TEXT
+         * @param nanos when it happened, in nanoseconds since the recording started
+         * @param message the message; text is utf-8.  only valid during the call.
+         */
+        void message(int kind, long nanos, ByteBuffer message);
+    }
+
+    private final FileChannel channel;
+    private final long size;
+    private final long startMillis;
+
+    public FrameReplayer(String file) throws IOException {
+        channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+        size = channel.size();
+        ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, FrameRecorder.HEADER));
+        if(size < FrameRecorder.HEADER || header.getInt() != FrameRecorder.MAGIC) {
+            channel.close();
+            throw new IOException(file + " is not a recording");
+        }
+        int version = header.getInt();
+        if(version != FrameRecorder.VERSION) {
+            channel.close();
+            throw new IOException(file + " is a version " + version + " recording");
+        }
+        startMillis = header.getLong();
+    }
+
+    /**
+     * @return when the recording started, in milliseconds since 1970
+     */
+    public long getStartTime() {
+        return startMillis;
+    }
+
+    /**
+     * hand every message to the handler as fast as possible
+     * @return the number of messages
+     */
+    public long replay(Handler handler) throws IOException {
+        return replay(handler, 0);
+    }
+
+    /**
+     * hand every message to the handler
+     * @param speed 1 to wait between messages as long as when they were recorded,
+     *              2 for twice as fast, ... 0 to not wait at all
+     * @return the number of messages
+     */
+    public long replay(Handler handler, double speed) throws IOException {
+        long count = 0;
+        long began = System.nanoTime();
+        long offset = FrameRecorder.HEADER;
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        while(offset + FrameRecorder.RECORD_HEADER <= size) {
+            if(window == null || offset + FrameRecorder.RECORD_HEADER > windowStart + window.limit()) {
+                windowStart = offset;
+                window = map(windowStart, FrameRecorder.RECORD_HEADER);
+            }
+            int at = (int) (offset - windowStart);
+            int kind = window.get(at);
+            long nanos = window.getLong(at + 1);
+            int length = window.getInt(at + 9);
+            long end = offset + FrameRecorder.RECORD_HEADER + length;
+            if(length < 0 || end > size) break; //cut off, the program died while recording
+            if(end > windowStart + window.limit()) {
+                //this message runs past the mapped part, start a new window here
+                windowStart = offset;
+                window = map(windowStart, end - offset);
+                at = 0;
+            }
+
+            if(speed > 0) {
+                long wait = (long) (nanos / speed) - (System.nanoTime() - began);
+                if(wait > 0) {
+                    try {
+                        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                        return count;
+                    }
+                }
+            }
+
+            ByteBuffer message = window.duplicate();
+            message.position(at + FrameRecorder.RECORD_HEADER).limit(at + FrameRecorder.RECORD_HEADER + length);
+            handler.message(kind, nanos, message.slice());
+            count++;
+            offset = end;
+        }
+        return count;
+    }
+
+    /**
+     * map the file from start, at least this many bytes if there are
+     */
+    private MappedByteBuffer map(long start, long atLeast) throws IOException {
+        long length = Math.min(size - start, Math.max(WINDOW, atLeast));
+        if(length > Integer.MAX_VALUE) throw new IOException("message too big at " + start);
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+
+    /**
+     * wait for a browser to connect, then send it everything that was sent
+     * in the recording.  what the browser sends back is ignored.
+     * @param speed see replay(Handler, double)
+     */
+    public void replayToBrowser(double speed) throws IOException {
+        SparkServer server = new SparkServer(json -> {});
+        replay((kind, nanos, message) -> {
+            if(kind == SENT_TEXT) server.sendText(StandardCharsets.UTF_8.decode(message));
+            else if(kind == SENT_BINARY) server.sendBytes(message);
+        }, speed);
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if(args.length == 0) {
+            System.err.println("usage: FrameReplayer recording [fast|bench]");
+            return;
+        }
+        String mode = args.length > 1 ? args[1] : "";
+        try(FrameReplayer replayer = new FrameReplayer(args[0])) {
+            if(mode.equals("bench")) {
+                long[] bytes = new long[3];
+                long t = System.nanoTime();
+                long count = replayer.replay((kind, nanos, message) -> {
+                    bytes[kind] += message.remaining();
+                    while(message.hasRemaining()) message.get(); //actually read it from the disk
+                }, 0);
+                double seconds = (System.nanoTime() - t) / 1e9;
+                System.out.println(count + " messages in " + seconds + " seconds");
+                System.out.println("sent " + bytes[SENT_TEXT] + " bytes of text and " + bytes[SENT_BINARY]
+                        + " bytes of binary, received " + bytes[RECEIVED_TEXT] + " bytes");
+            } else {
+                replayer.replayToBrowser(mode.equals("fast") ? 0 : 1);
+                System.exit(0);
+            }
+        }
+    }
+}
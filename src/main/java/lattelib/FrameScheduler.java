@@ -0,0 +1,222 @@
+package lattelib;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides when frames go out to the browser, and paces the program.
+ *
+ * The browser acknowledges every frame from requestAnimationFrame, once it has
+ * actually been shown.  While more than MAX_IN_FLIGHT frames are waiting for
+ * that, new frames are not sent but merged into the next one, so a slow
+ * browser never builds up a backlog.  When the acknowledgement arrives the
+ * merged frame goes out right away.
+ *
+ * In async mode frames are written and sent on a separate thread, and submit()
+ * only collects the changes, so the program can go on drawing the next frame
+ * in the meantime.  If the sender is still busy, the next changes are merged
+ * into the frame after it, so there is never more than one frame waiting.
+ */
+class FrameScheduler {
+    private static final int MAX_IN_FLIGHT = 2;
+    private static final long ACK_TIMEOUT = 1000000000L; //send anyway if the browser is silent this long (e.g. a hidden tab)
+    private static final long RATE_WINDOW = 2000000000L;
+
+    private final FrameEncoder encoder;
+    private final SparkServer server;
+
+    private volatile long period;
+    private long nextFrame;
+    private volatile int sentFrame = -1;
+    private volatile int ackedFrame = -1;
+    private volatile long lastSend;
+    private volatile long dropped;
+
+    private final long[] ackTimes = new long[32];
+    private int ackCount;
+
+    private volatile Thread sender; //async mode only
+    private final Object signal = new Object(); //not this: send() holds this while it writes
+    private boolean wake;
+
+    FrameScheduler(FrameEncoder encoder, SparkServer server, double fps) {
+        this.encoder = encoder;
+        this.server = server;
+        setFrameRate(fps);
+    }
+
+    void setFrameRate(double fps) {
+        period = (long) (1000000000L / Math.max(fps, 0.1));
+    }
+
+    void setBinary(boolean binary) {
+        encoder.setBinary(binary);
+    }
+
+    /**
+     * collect the changes in the scene and send them, or merge them into the
+     * next frame if the browser is behind
+     */
+    void submit(Scene scene) {
+        if(sender != null) {
+            if(encoder.hasPending()) dropped++; //the sender hasn't got to the last one yet
+            encoder.collect(scene);
+            wakeSender();
+            return;
+        }
+        encoder.collect(scene);
+        if(canSend()) send();
+        else if(encoder.hasPending()) dropped++;
+    }
+
+    /**
+     * write and send frames on a thread of their own
+     */
+    void setAsync(boolean async) {
+        synchronized (signal) {
+            if(async == (sender != null)) return;
+            if(!async) {
+                sender = null; //it stops when it wakes up, not in the middle of a send
+                wake = true;
+                signal.notifyAll();
+                return;
+            }
+            sender = new Thread(this::sendLoop, "frame-sender");
+            sender.setDaemon(true);
+            sender.start();
+        }
+    }
+
+    private void sendLoop() {
+        Thread me = Thread.currentThread();
+        while(sender == me) {
+            synchronized (signal) {
+                try {
+                    //wake up now and then anyway, in case the browser never acknowledges
+                    if(!wake) signal.wait(ACK_TIMEOUT / 1000000);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                wake = false;
+            }
+            try {
+                if(encoder.hasPending() && canSend()) send();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void wakeSender() {
+        synchronized (signal) {
+            wake = true;
+            signal.notifyAll();
+        }
+    }
+
+    private boolean canSend() {
+        return sentFrame - ackedFrame < MAX_IN_FLIGHT || System.nanoTime() - lastSend > ACK_TIMEOUT;
+    }
+
+    private synchronized void send() {
+        if(encoder.isBinary()) {
+            ByteBuffer frame = encoder.flushBinary();
+            if(frame == null) return;
+            server.sendBytes(frame);
+        } else {
+            CharSequence message = encoder.flush();
+            if(message == null) return;
+            server.sendText(message);
+        }
+        sentFrame = encoder.lastFrame();
+        lastSend = System.nanoTime();
+    }
+
+    /**
+     * the browser has shown this frame
+     */
+    void acknowledge(int frame) {
+        synchronized (ackTimes) {
+            ackTimes[ackCount++ % ackTimes.length] = System.nanoTime();
+        }
+        if(frame > ackedFrame) ackedFrame = frame;
+        sendPending();
+    }
+
+    /**
+     * send what the encoder has pending (from another thread than the program's)
+     */
+    private void sendPending() {
+        if(sender != null) wakeSender();
+        else if(encoder.hasPending() && canSend()) send();
+    }
+
+    /**
+     * the browser's window changed size
+     */
+    void setViewport(double width, double height) {
+        encoder.setViewport(width, height);
+        sendPending();
+    }
+
+    /**
+     * leave shapes outside the window out of frames, or not
+     */
+    void setCulling(boolean culling) {
+        encoder.setCulling(culling);
+        sendPending();
+    }
+
+    /**
+     * the browser lost track of the drawing; it gets a keyframe next
+     */
+    void resync() {
+        encoder.resync();
+        ackedFrame = sentFrame;
+    }
+
+    /**
+     * sleep until it is time for the next frame.  if the program is running
+     * late it carries on right away instead of trying to catch up.
+     */
+    void awaitNextFrame() {
+        long now = System.nanoTime();
+        if(nextFrame == 0 || now - nextFrame > period) nextFrame = now;
+        nextFrame += period;
+        long wait = nextFrame - now;
+        if(wait <= 0) return;
+        try {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * frames per second the browser has actually shown, over the last couple of seconds
+     */
+    double frameRate() {
+        synchronized (ackTimes) {
+            int n = Math.min(ackCount, ackTimes.length);
+            if(n < 2) return 0;
+            long newest = ackTimes[(ackCount - 1) % ackTimes.length];
+            long now = System.nanoTime();
+            if(now - newest > RATE_WINDOW) return 0;
+            int frames = 0;
+            long oldest = newest;
+            for(int i = 1; i < n; i++) {
+                long t = ackTimes[(ackCount - 1 - i) % ackTimes.length];
+                if(now - t > RATE_WINDOW) break;
+                oldest = t;
+                frames++;
+            }
+            return frames == 0 ? 0 : frames * 1e9 / (newest - oldest);
+        }
+    }
+
+    /**
+     * frames that were merged into a later one because the browser was behind
+     */
+    long droppedFrames() {
+        return dropped;
+    }
+}
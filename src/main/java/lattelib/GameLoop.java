@@ -0,0 +1,90 @@
+package lattelib;
+
+import java.util.Arrays;
+
+/**
+ * The loop behind WebLatte.run().
+ *
+ * The simulation moves in steps of the same length however long the frames
+ * take: the time since the last frame is added up, and the program gets an
+ * update for every whole step in it.  What is left over, as a fraction of a
+ * step, goes to render so it can draw moving things between where they were
+ * and where they will be.
+ *
+ * If the updates take longer than a step, drawing would only make it fall
+ * further behind, so frames are left out until it has caught up, though
+ * never for so long that the drawing looks stuck.  After a long pause (a
+ * breakpoint, a garbage collection) the simulation doesn't race to catch up:
+ * it only makes up a few steps.
+ */
+class GameLoop {
+    static final int HISTORY = 240; //frames kept for the frame time percentiles
+    private static final int MAX_STEPS = 5; //steps made up at once, at most
+    private static final long MAX_SKIP = 100000000; //nanos without a frame, at most
+
+    private final long step; //nanos
+    private volatile boolean running = true;
+    private final long[] times = new long[HISTORY]; //how long each frame's work took, nanos
+    private int count;
+    private long skipped;
+
+    GameLoop(double stepsPerSecond) {
+        if(stepsPerSecond <= 0) throw new IllegalArgumentException("there must be more than 0 steps per second");
+        step = (long) (1e9 / stepsPerSecond);
+    }
+
+    /**
+     * update and render until stop() is called
+     * @param present sends the frame render drew
+     * @param pace waits until it is time for the next frame
+     */
+    void run(WebLatte.FrameCallback callback, Runnable present, Runnable pace) {
+        double dt = step / 1e9;
+        long previous = System.nanoTime(), behind = 0, rendered = previous;
+        while(running) {
+            long start = System.nanoTime();
+            behind += Math.min(start - previous, MAX_STEPS * step);
+            previous = start;
+            while(behind >= step && running) {
+                callback.update(dt);
+                behind -= step;
+            }
+            if(!running) break;
+            long now = System.nanoTime();
+            if(now - start + behind >= step && now - rendered < MAX_SKIP) {
+                synchronized (this) {
+                    skipped++;
+                }
+                continue;
+            }
+            rendered = now;
+            callback.render((double) behind / step);
+            present.run();
+            synchronized (this) {
+                times[count++ % HISTORY] = System.nanoTime() - start;
+            }
+            pace.run();
+        }
+    }
+
+    void stop() {
+        running = false;
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return how long the frames' work took, in milliseconds, over the last HISTORY frames
+     */
+    synchronized double frameTime(double percentile) {
+        int n = Math.min(count, HISTORY);
+        if(n == 0) return 0;
+        long[] sorted = Arrays.copyOf(times, n);
+        Arrays.sort(sorted);
+        int i = (int) Math.ceil(percentile / 100 * n) - 1;
+        return sorted[Math.max(0, Math.min(n - 1, i))] / 1e6;
+    }
+
+    synchronized long skipped() {
+        return skipped;
+    }
+}
@@ -0,0 +1,232 @@
+package lattelib;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Smaller copies of the local images drawImage draws, so a big photo drawn
+ * small isn't downloaded and decoded in full by the browser.
+ *
+ * drawImage points the browser at img/[size]/[file]?v=[modified]-[length]
+ * instead of at the file, with the file's name url encoded.  A file's
+ * modification time and length are looked up at most once every
+ * STAMP_MILLIS, so drawing the same images every frame doesn't ask the disk
+ * about them every time.  The size is a power of two at least twice as big
+ * as the image is drawn (so it is still sharp on high density screens), so
+ * drawing an image at slightly different sizes uses the same copy.  The copy
+ * is made the first time the browser asks for it, and kept in memory and in
+ * the temp folder under the file's modification time and length: a changed
+ * file gets a new href, and a new copy.  Images that are small already are
+ * served as they are.
+ */
+class ImageCache {
+    static final String PREFIX = "img/";
+    private static final int MIN_SIZE = 32, MAX_SIZE = 4096;
+    private static final long MEMORY = 64L << 20; //bytes of copies kept in memory, the least recently used go first
+    private static final long STAMP_MILLIS = 1000; //how long a file's modification time is trusted
+    private static final String[] EXTENSIONS = {".png", ".jpg", ".jpeg", ".gif", ".bmp"};
+    private static final File ROOT = new File(System.getProperty("user.dir"));
+    private static final File DIR = new File(System.getProperty("java.io.tmpdir"), "lattelib-images");
+
+    private static final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private static long memoryBytes;
+    private static final Map<String, Stamp> stamps = new ConcurrentHashMap<String, Stamp>();
+
+    private static class Stamp {
+        final String path; //the file's name encoded, or null if it isn't a local image
+        final String version; //modified-length
+        final long checked;
+
+        Stamp(String path, String version, long checked) {
+            this.path = path;
+            this.version = version;
+            this.checked = checked;
+        }
+    }
+
+    /**
+     * the href to draw a file at this size with: a copy's, or the file's own
+     * if it isn't a local image
+     */
+    static String href(String file, double w, double h) {
+        if(file == null) return null;
+        long now = System.currentTimeMillis();
+        Stamp stamp = stamps.get(file);
+        if(stamp == null || now - stamp.checked > STAMP_MILLIS) {
+            File f = local(file);
+            stamp = f == null ? new Stamp(null, null, now) : new Stamp(encode(file), f.lastModified() + "-" + f.length(), now);
+            stamps.put(file, stamp);
+        }
+        if(stamp.path == null) return file;
+        return PREFIX + size(Math.max(w, h)) + "/" + stamp.path + "?v=" + stamp.version;
+    }
+
+    /**
+     * the file an href from href() is a copy of
+     */
+    static String source(String href) {
+        if(!href.startsWith(PREFIX)) return href;
+        int slash = href.indexOf('/', PREFIX.length()), query = href.indexOf('?');
+        if(slash < 0) return href;
+        return decode(href.substring(slash + 1, query > slash ? query : href.length()));
+    }
+
+    /**
+     * a file's name as the path of a url: every part encoded, so names with
+     * #, % or ? in them still get to the img route
+     */
+    private static String encode(String file) {
+        try {
+            return URLEncoder.encode(file, "UTF-8").replace("+", "%20").replace("%2F", "/");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String path) {
+        try {
+            return URLDecoder.decode(path, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * the smallest power of two at least twice as big as an image is drawn
+     */
+    static int size(double drawn) {
+        int size = MIN_SIZE;
+        while(size < 2 * drawn && size < MAX_SIZE) size <<= 1;
+        return size;
+    }
+
+    /**
+     * an image file under the working directory, or null
+     */
+    private static File local(String file) {
+        if(file == null || file.contains(":")) return null; //urls and data
+        String lower = file.toLowerCase();
+        boolean image = false;
+        for(String extension : EXTENSIONS) image |= lower.endsWith(extension);
+        if(!image) return null;
+        File f = new File(ROOT, file);
+        return f.isFile() ? f : null;
+    }
+
+    /**
+     * a copy of a file no bigger than size x size, made if it isn't kept yet
+     * @return the image's bytes, or null if there is no such image
+     */
+    static byte[] get(int size, String file) throws IOException {
+        if(size < MIN_SIZE || size > MAX_SIZE || Integer.bitCount(size) != 1) return null;
+        File f = local(file);
+        if(f == null || !f.getCanonicalPath().startsWith(ROOT.getCanonicalPath() + File.separator)) return null;
+        String key = f.getCanonicalPath() + "|" + f.lastModified() + "|" + f.length() + "|" + size;
+        synchronized (memory) {
+            byte[] bytes = memory.get(key);
+            if(bytes != null) return bytes;
+        }
+
+        File cache = new File(DIR, hash(key));
+        byte[] bytes;
+        if(cache.isFile()) {
+            bytes = Files.readAllBytes(cache.toPath());
+        } else {
+            bytes = resize(f, size);
+            try {
+                DIR.mkdirs();
+                File tmp = File.createTempFile("lattelib-image", ".tmp", DIR);
+                Files.write(tmp.toPath(), bytes);
+                Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException e) {
+                e.printStackTrace(); //no copy on disk then, it still works
+            }
+        }
+        remember(key, bytes);
+        return bytes;
+    }
+
+    private static void remember(String key, byte[] bytes) {
+        synchronized (memory) {
+            byte[] old = memory.put(key, bytes);
+            memoryBytes += bytes.length - (old == null ? 0 : old.length);
+            for(Iterator<byte[]> i = memory.values().iterator(); memoryBytes > MEMORY && i.hasNext(); ) {
+                memoryBytes -= i.next().length;
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * scale an image down to fit in size x size: halving it while it is
+     * more than twice too big (one bicubic step that far would skip most of
+     * the pixels and look grainy), then the rest of the way.  images with
+     * transparency stay png, the rest become jpeg.
+     */
+    private static byte[] resize(File f, int size) throws IOException {
+        BufferedImage image = ImageIO.read(f);
+        if(image == null || Math.max(image.getWidth(), image.getHeight()) <= size) return Files.readAllBytes(f.toPath());
+        double scale = (double) size / Math.max(image.getWidth(), image.getHeight());
+        int w = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int h = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        boolean alpha = image.getColorModel().hasAlpha();
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        while(image.getWidth() > 2 * w || image.getHeight() > 2 * h) {
+            image = scale(image, Math.max(w, image.getWidth() / 2), Math.max(h, image.getHeight() / 2), type);
+        }
+        image = scale(image, w, h, type);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, alpha ? "png" : "jpg", out);
+        return out.toByteArray();
+    }
+
+    private static BufferedImage scale(BufferedImage image, int w, int h, int type) {
+        BufferedImage scaled = new BufferedImage(w, h, type);
+        Graphics2D g = scaled.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        g.drawImage(image, 0, 0, w, h, null);
+        g.dispose();
+        return scaled;
+    }
+
+    /**
+     * the content type of an image's bytes
+     */
+    static String type(byte[] bytes) {
+        if(bytes.length > 3 && (bytes[0] & 0xff) == 0x89 && bytes[1] == 'P') return "image/png";
+        if(bytes.length > 2 && (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xd8) return "image/jpeg";
+        if(bytes.length > 2 && bytes[0] == 'G' && bytes[1] == 'I') return "image/gif";
+        if(bytes.length > 2 && bytes[0] == 'B' && bytes[1] == 'M') return "image/bmp";
+        return "application/octet-stream";
+    }
+
+    private static String hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for(int i = 0; i < 16; i++) hex.append(String.format("%02x", digest[i]));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
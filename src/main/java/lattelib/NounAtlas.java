@@ -0,0 +1,247 @@
+package lattelib;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.JarURLConnection;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.IntStream;
+
+/**
+ * All the nouns in one image, so the browser fetches one file instead of one
+ * per noun.
+ *
+ * The atlas is built once, on a background thread when the server starts:
+ * every png in webroot/resources/nouns is scaled down to a CELL x CELL square
+ * in a grid, in name order.  It is served as atlas/nouns-[hash].png, where
+ * the hash is taken from the atlas itself, so the browser can cache it forever
+ * and still gets the new one when the nouns change.
+ *
+ * Until it is ready, or for nouns drawn bigger than a cell, drawNoun uses the
+ * noun's own png as before.
+ */
+class NounAtlas {
+    static final int CELL = 128;
+    private static final String NOUNS = "webroot/resources/nouns/";
+
+    private static volatile NounAtlas atlas;
+
+    final String file;  //nouns-[hash].png
+    final String href;  //atlas/nouns-[hash].png
+    final byte[] png;
+    private final Map<String, Integer> cells = new HashMap<String, Integer>();
+    private final int columns, rows;
+    private BufferedImage image;
+
+    private NounAtlas(List<String> names, int columns, int rows, byte[] png) {
+        for(String name : names) cells.put(name, cells.size());
+        this.columns = columns;
+        this.rows = rows;
+        this.png = png;
+        this.file = "nouns-" + hash(png) + ".png";
+        this.href = "atlas/" + file;
+    }
+
+    /**
+     * the atlas, or null if it isn't built (yet)
+     */
+    static NounAtlas get() {
+        return atlas;
+    }
+
+    /**
+     * build the atlas on a background thread
+     */
+    static void buildInBackground() {
+        if(atlas != null) return;
+        Thread t = new Thread(() -> {
+            try {
+                atlas = build();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }, "noun-atlas");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * where a noun is in the atlas
+     * @return x, y and size of its cell, or null if there is no such noun
+     */
+    int[] cell(String name) {
+        Integer i = cells.get(name);
+        if(i == null) return null;
+        return new int[]{(i % columns) * CELL, (i / columns) * CELL, CELL};
+    }
+
+    /**
+     * true if there is a noun with this name, whether or not the atlas is built
+     */
+    static boolean exists(String name) {
+        return NounAtlas.class.getResource("/" + NOUNS + name + ".png") != null;
+    }
+
+    int width() {
+        return columns * CELL;
+    }
+
+    int height() {
+        return rows * CELL;
+    }
+
+    /**
+     * the atlas as an image, for painting on the server
+     */
+    synchronized BufferedImage image() {
+        if(image == null) {
+            try {
+                image = ImageIO.read(new ByteArrayInputStream(png));
+            } catch (IOException e) {
+                e.printStackTrace();
+                image = new BufferedImage(width(), height(), BufferedImage.TYPE_INT_ARGB);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * writing the png takes seconds, so the atlas is kept in the temp folder
+     * under a hash of the nouns it was made from
+     */
+    private static NounAtlas build() throws IOException {
+        List<String> names = nounNames();
+        Collections.sort(names);
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(names.size())));
+        int rows = Math.max(1, (names.size() + columns - 1) / columns);
+
+        byte[][] sources = new byte[names.size()][];
+        IntStream.range(0, sources.length).parallel().forEach(i -> sources[i] = read(names.get(i)));
+        MessageDigest digest = sha256();
+        digest.update(("" + CELL).getBytes(StandardCharsets.UTF_8));
+        for(int i = 0; i < sources.length; i++) {
+            digest.update(names.get(i).getBytes(StandardCharsets.UTF_8));
+            if(sources[i] != null) digest.update(sources[i]);
+        }
+        File cache = new File(System.getProperty("java.io.tmpdir"), "lattelib-nouns-" + hex(digest.digest()) + ".png");
+        if(cache.isFile()) return new NounAtlas(names, columns, rows, Files.readAllBytes(cache.toPath()));
+
+        BufferedImage[] nouns = new BufferedImage[sources.length];
+        IntStream.range(0, sources.length).parallel().forEach(i -> {
+            try {
+                if(sources[i] != null) nouns[i] = ImageIO.read(new ByteArrayInputStream(sources[i]));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+
+        BufferedImage image = new BufferedImage(columns * CELL, rows * CELL, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+        g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+        for(int i = 0; i < nouns.length; i++) {
+            BufferedImage noun = nouns[i];
+            if(noun == null) continue;
+            //fit it in its cell the way an svg image does: as big as possible, centered
+            double scale = Math.min((double) CELL / noun.getWidth(), (double) CELL / noun.getHeight());
+            int w = (int) Math.round(noun.getWidth() * scale), h = (int) Math.round(noun.getHeight() * scale);
+            g.drawImage(noun, (i % columns) * CELL + (CELL - w) / 2, (i / columns) * CELL + (CELL - h) / 2, w, h, null);
+        }
+        g.dispose();
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        byte[] png = out.toByteArray();
+        try {
+            File tmp = File.createTempFile("lattelib-nouns", ".tmp", cache.getParentFile());
+            Files.write(tmp.toPath(), png);
+            Files.move(tmp.toPath(), cache.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace(); //no cache then, it still works
+        }
+        NounAtlas built = new NounAtlas(names, columns, rows, png);
+        built.image = image;
+        return built;
+    }
+
+    private static byte[] read(String name) {
+        try(InputStream in = NounAtlas.class.getResourceAsStream("/" + NOUNS + name + ".png")) {
+            if(in == null) return null;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[16384];
+            for(int n; (n = in.read(buf)) > 0; ) out.write(buf, 0, n);
+            return out.toByteArray();
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    private static String hash(byte[] data) {
+        return hex(sha256().digest(data));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] digest) {
+        StringBuilder hex = new StringBuilder();
+        for(int i = 0; i < 8; i++) hex.append(String.format("%02x", digest[i]));
+        return hex.toString();
+    }
+
+    /**
+     * the names of all the nouns, from the classes folder or from inside the jar
+     */
+    private static List<String> nounNames() throws IOException {
+        List<String> names = new ArrayList<String>();
+        URL url = NounAtlas.class.getResource("/" + NOUNS);
+        if(url == null) return names;
+        if(url.getProtocol().equals("jar")) {
+            JarFile jar = ((JarURLConnection) url.openConnection()).getJarFile();
+            Enumeration<JarEntry> entries = jar.entries();
+            while(entries.hasMoreElements()) {
+                String entry = entries.nextElement().getName();
+                if(entry.startsWith(NOUNS) && entry.endsWith(".png") && entry.indexOf('/', NOUNS.length()) < 0) {
+                    names.add(entry.substring(NOUNS.length(), entry.length() - 4));
+                }
+            }
+        } else {
+            try {
+                File[] files = new File(url.toURI()).listFiles();
+                if(files == null) return names;
+                for(File f : files) {
+                    if(f.getName().endsWith(".png")) names.add(f.getName().substring(0, f.getName().length() - 4));
+                }
+            } catch (URISyntaxException e) {
+                e.printStackTrace();
+            }
+        }
+        return names;
+    }
+}
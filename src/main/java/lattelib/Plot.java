@@ -0,0 +1,114 @@
+package lattelib;
+
+import org.w3c.dom.Element;
+
+/**
+ * A data series drawn as one polyline.
+ *
+ * Long series are downsampled to about two points per pixel of the plot's
+ * width with largest-triangle-three-buckets: the points are split into
+ * buckets, and from each bucket the point making the biggest triangle with
+ * the point kept before it and the average of the next bucket is kept.  That
+ * keeps the peaks and dips a plain "every nth point" would lose.
+ *
+ * Which points are kept doesn't depend on how the axes are scaled, only on
+ * how many buckets there are, so the choice is kept: a window that only gets
+ * taller just moves the same points.
+ */
+class Plot {
+    Element element; //set once drawn
+    String layer;
+
+    private final double[] xs, ys;
+    private double minX = Double.POSITIVE_INFINITY, maxX = Double.NEGATIVE_INFINITY;
+    private double minY = Double.POSITIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+    private int[] kept; //indexes of the points drawn, null for all of them
+    private int keptFor = -1; //the number of points kept was worked out for
+    private double x, y, w = -1, h = -1; //the box it is laid out in
+
+    /**
+     * @param copy false if the arrays are only laid out once, right away
+     */
+    Plot(double[] xs, double[] ys, boolean copy) {
+        if(xs.length != ys.length) throw new IllegalArgumentException("there must be as many xs as ys");
+        this.xs = copy ? xs.clone() : xs;
+        this.ys = copy ? ys.clone() : ys;
+        for(int i = 0; i < xs.length; i++) {
+            if(xs[i] < minX) minX = xs[i];
+            if(xs[i] > maxX) maxX = xs[i];
+            if(ys[i] < minY) minY = ys[i];
+            if(ys[i] > maxY) maxY = ys[i];
+        }
+    }
+
+    /**
+     * stretch the series over a box, the smallest y at the bottom, and set the
+     * polyline's points.  does nothing if it is already laid out in this box.
+     */
+    void layout(Element line, double x, double y, double w, double h) {
+        if(x == this.x && y == this.y && w == this.w && h == this.h) return;
+        this.x = x;
+        this.y = y;
+        this.w = w;
+        this.h = h;
+        int threshold = Math.max(3, (int) Math.ceil(2 * w));
+        if(threshold != keptFor) {
+            kept = lttb(xs, ys, threshold);
+            keptFor = threshold;
+        }
+
+        double sx = maxX > minX ? w / (maxX - minX) : 0;
+        double sy = maxY > minY ? h / (maxY - minY) : 0;
+        double y0 = maxY > minY ? y + h : y + h / 2;
+        int n = kept == null ? xs.length : kept.length;
+        StringBuilder points = new StringBuilder(n * 12);
+        for(int i = 0; i < n; i++) {
+            int p = kept == null ? i : kept[i];
+            if(i > 0) points.append(' ');
+            SvgWriter.number(points, x + (xs[p] - minX) * sx);
+            points.append(',');
+            SvgWriter.number(points, y0 - (ys[p] - minY) * sy);
+        }
+        line.setAttributeNS(null, "points", points.toString());
+    }
+
+    /**
+     * largest-triangle-three-buckets.  the xs must be in increasing order.
+     * @return the indexes of the points to keep, or null to keep them all
+     */
+    static int[] lttb(double[] xs, double[] ys, int threshold) {
+        int n = xs.length;
+        if(threshold >= n || threshold < 3) return null;
+        int[] kept = new int[threshold];
+        double every = (double) (n - 2) / (threshold - 2); //points per bucket, without the first and last
+        int a = 0; //the point kept from the bucket before
+        for(int i = 0; i < threshold - 2; i++) {
+            //the average of the next bucket (the last point, for the last bucket)
+            int next = (int) ((i + 1) * every) + 1;
+            int nextEnd = Math.min((int) ((i + 2) * every) + 1, n);
+            if(nextEnd <= next) nextEnd = next + 1;
+            double avgX = 0, avgY = 0;
+            for(int j = next; j < nextEnd; j++) {
+                avgX += xs[j];
+                avgY += ys[j];
+            }
+            avgX /= nextEnd - next;
+            avgY /= nextEnd - next;
+
+            //the point of this bucket making the biggest triangle
+            double ax = xs[a], ay = ys[a];
+            double biggest = -1;
+            int chosen = next - 1;
+            for(int j = (int) (i * every) + 1; j < next; j++) {
+                double area = Math.abs((ax - avgX) * (ys[j] - ay) - (ax - xs[j]) * (avgY - ay));
+                if(area > biggest) {
+                    biggest = area;
+                    chosen = j;
+                }
+            }
+            kept[i + 1] = a = chosen;
+        }
+        kept[threshold - 1] = n - 1;
+        return kept;
+    }
+}
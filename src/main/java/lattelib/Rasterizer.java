@@ -0,0 +1,496 @@
+package lattelib;
+
+import org.apache.batik.parser.AWTPathProducer;
+import org.apache.batik.parser.AWTPolygonProducer;
+import org.apache.batik.parser.AWTPolylineProducer;
+import org.apache.batik.parser.AWTTransformProducer;
+import org.apache.batik.parser.ParseException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.Line2D;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Paints the drawing into an image on the server, without a browser.
+ *
+ * The Scene is first turned into a list of paint operations that hold
+ * everything they need, so the DOM is only read on the calling thread.  The
+ * image is then painted in horizontal bands, in parallel if asked: every band
+ * runs all the operations clipped to its own rows, so the result is the same
+ * either way.
+ *
+ * Shapes from the draw functions are painted from their numbers.  Anything
+ * else is read from its element: groups, nested svg, rect, circle, ellipse,
+ * line, polyline, polygon, path, text and image, with fill, stroke,
+ * stroke-width, opacity, font-size and transform.  Fancier svg (gradients,
+ * filters, css classes...) is not supported.
+ */
+class Rasterizer {
+    private static final int BAND = 64; //rows per band
+    private static final Map<String, BufferedImage> images = new ConcurrentHashMap<String, BufferedImage>();
+    private static final BufferedImage MISSING = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+    private static Map<String, Color> namedColors;
+
+    interface Op {
+        void paint(Graphics2D g);
+    }
+
+    /**
+     * what an element inherits from the groups around it
+     */
+    private static class Style {
+        Color fill = Color.BLACK;
+        Color stroke;
+        float strokeWidth = 1;
+        float opacity = 1;
+        float fontSize = 16;
+
+        Style copy() {
+            Style s = new Style();
+            s.fill = fill;
+            s.stroke = stroke;
+            s.strokeWidth = strokeWidth;
+            s.opacity = opacity;
+            s.fontSize = fontSize;
+            return s;
+        }
+    }
+
+    private final int width, height;
+
+    Rasterizer(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * paint everything in the scene
+     * @param parallel paint the bands on several threads
+     * @return a new image, transparent where nothing was drawn
+     */
+    BufferedImage render(Scene scene, boolean parallel) {
+        List<Op> ops = snapshot(scene);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        IntStream bands = IntStream.range(0, (height + BAND - 1) / BAND);
+        if(parallel) bands = bands.parallel();
+        bands.forEach(band -> {
+            Graphics2D g = image.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
+            g.clipRect(0, band * BAND, width, BAND);
+            for(Op op : ops) op.paint(g);
+            g.dispose();
+        });
+        return image;
+    }
+
+    /**
+     * turn the scene into paint operations, in draw order
+     */
+    List<Op> snapshot(Scene scene) {
+        List<Op> ops = new ArrayList<Op>(scene.size());
+        for(Scene.Slot s : scene.slots()) {
+            Shape shape = s.shape;
+            if(shape != null) ops.add(g -> paintShape(g, shape));
+            else element(s.element, new AffineTransform(), new Style(), ops);
+        }
+        return ops;
+    }
+
+    private static void paintShape(Graphics2D g, Shape s) {
+        double[] v = s.v;
+        AffineTransform saved = g.getTransform();
+        g.setColor(new Color(s.rgb));
+        switch(s.kind) {
+            case Shape.RECT:
+                rotate(g, v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+                g.fill(new Rectangle2D.Double(v[0], v[1], v[2], v[3]));
+                break;
+            case Shape.CIRCLE:
+                g.fill(new Ellipse2D.Double(v[0] - v[2], v[1] - v[2], 2 * v[2], 2 * v[2]));
+                break;
+            case Shape.ELLIPSE:
+                rotate(g, v[4], v[0], v[1]);
+                g.fill(new Ellipse2D.Double(v[0] - v[2], v[1] - v[3], 2 * v[2], 2 * v[3]));
+                break;
+            case Shape.LINE:
+                g.setStroke(new BasicStroke((float) v[4], BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
+                g.draw(new Line2D.Double(v[0], v[1], v[2], v[3]));
+                break;
+            case Shape.TEXT:
+                rotate(g, v[3], v[0], v[1]);
+                g.setFont(new Font(Font.SERIF, Font.PLAIN, 1).deriveFont((float) v[2]));
+                g.drawString(s.text, (float) v[0], (float) v[1]);
+                break;
+            case Shape.IMAGE:
+                rotate(g, v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+                paintImage(g, s.text, v[0], v[1], v[2], v[3]);
+                break;
+            case Shape.SPRITE:
+                rotate(g, v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+                paintSprite(g, s.text, v);
+                break;
+            default:
+                paintBatch(g, s);
+        }
+        g.setTransform(saved);
+    }
+
+    private static void paintBatch(Graphics2D g, Shape s) {
+        double[] v = s.v;
+        int n = s.colors.length, stride = Shape.stride(s.kind);
+        double shared = Shape.shared(s.kind) == 1 ? v[n * stride] : 0;
+        if(s.kind == Shape.LINES) g.setStroke(new BasicStroke((float) shared, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
+        Rectangle2D.Double rect = new Rectangle2D.Double();
+        Ellipse2D.Double circle = new Ellipse2D.Double();
+        Line2D.Double line = new Line2D.Double();
+        for(int i = 0, o = 0; i < n; i++, o += stride) {
+            g.setColor(new Color(s.colors[i]));
+            switch(s.kind) {
+                case Shape.RECTS:
+                    rect.setRect(v[o], v[o + 1], v[o + 2], v[o + 3]);
+                    g.fill(rect);
+                    break;
+                case Shape.CIRCLES:
+                    circle.setFrame(v[o] - v[o + 2], v[o + 1] - v[o + 2], 2 * v[o + 2], 2 * v[o + 2]);
+                    g.fill(circle);
+                    break;
+                case Shape.LINES:
+                    line.setLine(v[o], v[o + 1], v[o + 2], v[o + 3]);
+                    g.draw(line);
+                    break;
+                case Shape.POINTS:
+                    rect.setRect(v[o] - shared / 2, v[o + 1] - shared / 2, shared, shared);
+                    g.fill(rect);
+                    break;
+            }
+        }
+    }
+
+    private static void rotate(Graphics2D g, double rot, double cx, double cy) {
+        if(rot != 0) g.rotate(Math.toRadians(rot), cx, cy);
+    }
+
+    private static void paintImage(Graphics2D g, String href, double x, double y, double w, double h) {
+        BufferedImage img = image(href);
+        if(img == MISSING) return;
+        AffineTransform saved = g.getTransform();
+        g.translate(x, y);
+        g.scale(w / img.getWidth(), h / img.getHeight());
+        g.drawImage(img, 0, 0, null);
+        g.setTransform(saved);
+    }
+
+    /**
+     * a noun's cell of the atlas, fitted into its box the way svg does
+     */
+    private static void paintSprite(Graphics2D g, String href, double[] v) {
+        BufferedImage img = image(href);
+        if(img == MISSING) return;
+        double size = v[7], scale = Math.min(v[2], v[3]) / size;
+        AffineTransform saved = g.getTransform();
+        g.translate(v[0] + (v[2] - size * scale) / 2, v[1] + (v[3] - size * scale) / 2);
+        g.scale(scale, scale);
+        int sx = (int) v[5], sy = (int) v[6], s = (int) size;
+        g.drawImage(img, 0, 0, s, s, sx, sy, sx + s, sy + s, null);
+        g.setTransform(saved);
+    }
+
+    /**
+     * an image by its href: a file the web server serves from webroot, or one
+     * relative to the working directory
+     */
+    static BufferedImage image(String href) {
+        if(href == null) return MISSING;
+        NounAtlas atlas = NounAtlas.get();
+        if(atlas != null && atlas.href.equals(href)) return atlas.image();
+        return images.computeIfAbsent(ImageCache.source(href), h -> {
+            try(InputStream in = Rasterizer.class.getResourceAsStream("/webroot/" + h)) {
+                if(in != null) return ImageIO.read(in);
+                File f = new File(System.getProperty("user.dir"), h);
+                if(f.isFile()) return ImageIO.read(f);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return MISSING;
+        });
+    }
+
+    private void element(Element e, AffineTransform parent, Style inherited, List<Op> ops) {
+        AffineTransform t = new AffineTransform(parent);
+        String transform = e.getAttribute("transform");
+        if(!transform.isEmpty()) {
+            try {
+                t.concatenate(AWTTransformProducer.createAffineTransform(transform));
+            } catch (ParseException ex) {
+                ex.printStackTrace();
+            }
+        }
+        Style style = style(e, inherited);
+
+        java.awt.Shape geometry = null;
+        switch(e.getLocalName() == null ? e.getTagName() : e.getLocalName()) {
+            case "svg":
+                svg(e, t, style, ops);
+                return;
+            case "g":
+                for(Node c = e.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    if(c instanceof Element) element((Element) c, t, style, ops);
+                }
+                return;
+            case "rect":
+                double rx = number(e, "rx"), ry = e.hasAttribute("ry") ? number(e, "ry") : rx;
+                geometry = rx == 0 && ry == 0
+                        ? new Rectangle2D.Double(number(e, "x"), number(e, "y"), number(e, "width"), number(e, "height"))
+                        : new RoundRectangle2D.Double(number(e, "x"), number(e, "y"), number(e, "width"), number(e, "height"), 2 * rx, 2 * ry);
+                break;
+            case "circle":
+                double r = number(e, "r");
+                geometry = new Ellipse2D.Double(number(e, "cx") - r, number(e, "cy") - r, 2 * r, 2 * r);
+                break;
+            case "ellipse":
+                double erx = number(e, "rx"), ery = number(e, "ry");
+                geometry = new Ellipse2D.Double(number(e, "cx") - erx, number(e, "cy") - ery, 2 * erx, 2 * ery);
+                break;
+            case "line":
+                geometry = new Line2D.Double(number(e, "x1"), number(e, "y1"), number(e, "x2"), number(e, "y2"));
+                style.fill = null;
+                break;
+            case "polyline":
+            case "polygon":
+            case "path":
+                geometry = path(e);
+                break;
+            case "text":
+                text(e, t, style, ops);
+                return;
+            case "image":
+                String href = e.getAttribute("xlink:href");
+                if(href.isEmpty()) href = e.getAttributeNS("http://www.w3.org/1999/xlink", "href");
+                if(href.isEmpty()) href = e.getAttribute("href");
+                String src = href;
+                double x = number(e, "x"), y = number(e, "y"), w = number(e, "width"), h = number(e, "height");
+                ops.add(g -> {
+                    AffineTransform saved = g.getTransform();
+                    g.transform(t);
+                    paintImage(g, src, x, y, w, h);
+                    g.setTransform(saved);
+                });
+                return;
+            default:
+                return;
+        }
+        if(geometry == null) return;
+
+        java.awt.Shape geom = geometry;
+        Color fill = fade(style.fill, style.opacity), stroke = fade(style.stroke, style.opacity);
+        BasicStroke pen = new BasicStroke(style.strokeWidth, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER);
+        ops.add(g -> {
+            AffineTransform saved = g.getTransform();
+            g.transform(t);
+            if(fill != null) {
+                g.setColor(fill);
+                g.fill(geom);
+            }
+            if(stroke != null) {
+                g.setColor(stroke);
+                g.setStroke(pen);
+                g.draw(geom);
+            }
+            g.setTransform(saved);
+        });
+    }
+
+    /**
+     * a nested svg: its children are placed in its box, scaled to fit its
+     * viewBox if it has one
+     */
+    private void svg(Element e, AffineTransform t, Style style, List<Op> ops) {
+        double x = number(e, "x"), y = number(e, "y");
+        AffineTransform inner = new AffineTransform(t);
+        inner.translate(x, y);
+        String[] box = e.getAttribute("viewBox").trim().split("[\\s,]+");
+        if(box.length == 4 && e.hasAttribute("width") && e.hasAttribute("height")) {
+            try {
+                double vx = Double.parseDouble(box[0]), vy = Double.parseDouble(box[1]);
+                double vw = Double.parseDouble(box[2]), vh = Double.parseDouble(box[3]);
+                double w = number(e, "width"), h = number(e, "height");
+                if(vw > 0 && vh > 0) {
+                    double scale = Math.min(w / vw, h / vh); //xMidYMid meet
+                    inner.translate((w - vw * scale) / 2, (h - vh * scale) / 2);
+                    inner.scale(scale, scale);
+                    inner.translate(-vx, -vy);
+                }
+            } catch (NumberFormatException ex) {
+                ex.printStackTrace();
+            }
+        }
+        int first = ops.size();
+        for(Node c = e.getFirstChild(); c != null; c = c.getNextSibling()) {
+            if(c instanceof Element) element((Element) c, inner, style, ops);
+        }
+        if(!e.hasAttribute("width") || !e.hasAttribute("height") || ops.size() == first) return;
+
+        //everything inside is clipped to the svg's box
+        java.awt.Shape clip = t.createTransformedShape(new Rectangle2D.Double(x, y, number(e, "width"), number(e, "height")));
+        List<Op> children = new ArrayList<Op>(ops.subList(first, ops.size()));
+        ops.subList(first, ops.size()).clear();
+        ops.add(g -> {
+            java.awt.Shape saved = g.getClip();
+            g.clip(clip);
+            for(Op op : children) op.paint(g);
+            g.setClip(saved);
+        });
+    }
+
+    private void text(Element e, AffineTransform t, Style style, List<Op> ops) {
+        String s = e.getTextContent();
+        Color fill = fade(style.fill, style.opacity);
+        if(s == null || s.isEmpty() || fill == null) return;
+        float x = (float) number(e, "x"), y = (float) number(e, "y");
+        Font font = new Font(Font.SERIF, Font.PLAIN, 1).deriveFont(style.fontSize);
+        ops.add(g -> {
+            AffineTransform saved = g.getTransform();
+            g.transform(t);
+            g.setColor(fill);
+            g.setFont(font);
+            g.drawString(s, x, y);
+            g.setTransform(saved);
+        });
+    }
+
+    static java.awt.Shape path(Element e) {
+        try {
+            switch(e.getLocalName() == null ? e.getTagName() : e.getLocalName()) {
+                case "polyline":
+                    return AWTPolylineProducer.createShape(new StringReader(e.getAttribute("points")), GeneralPath.WIND_NON_ZERO);
+                case "polygon":
+                    return AWTPolygonProducer.createShape(new StringReader(e.getAttribute("points")), GeneralPath.WIND_NON_ZERO);
+                default:
+                    int rule = "evenodd".equals(property(e, "fill-rule")) ? GeneralPath.WIND_EVEN_ODD : GeneralPath.WIND_NON_ZERO;
+                    return AWTPathProducer.createShape(new StringReader(e.getAttribute("d")), rule);
+            }
+        } catch (IOException | ParseException ex) {
+            ex.printStackTrace();
+            return null;
+        }
+    }
+
+    private static Style style(Element e, Style inherited) {
+        Style s = inherited.copy();
+        String fill = property(e, "fill");
+        if(fill != null) s.fill = color(fill);
+        String stroke = property(e, "stroke");
+        if(stroke != null) s.stroke = color(stroke);
+        String width = property(e, "stroke-width");
+        if(width != null) s.strokeWidth = (float) parse(width, s.strokeWidth);
+        String opacity = property(e, "opacity");
+        if(opacity != null) s.opacity *= (float) parse(opacity, 1);
+        String size = property(e, "font-size");
+        if(size != null) s.fontSize = (float) parse(size, s.fontSize);
+        return s;
+    }
+
+    /**
+     * a presentation attribute, or the same property in the style attribute,
+     * which wins like it does in the browser
+     */
+    static String property(Element e, String name) {
+        String style = e.getAttribute("style");
+        if(!style.isEmpty()) {
+            for(String declaration : style.split(";")) {
+                int colon = declaration.indexOf(':');
+                if(colon > 0 && declaration.substring(0, colon).trim().equals(name)) {
+                    return declaration.substring(colon + 1).trim();
+                }
+            }
+        }
+        return e.hasAttribute(name) ? e.getAttribute(name).trim() : null;
+    }
+
+    static double number(Element e, String name) {
+        return parse(e.getAttribute(name), 0);
+    }
+
+    static double parse(String s, double otherwise) {
+        s = s.trim();
+        if(s.endsWith("px")) s = s.substring(0, s.length() - 2);
+        if(s.isEmpty()) return otherwise;
+        try {
+            return Double.parseDouble(s);
+        } catch (NumberFormatException e) {
+            return otherwise;
+        }
+    }
+
+    private static Color fade(Color c, float opacity) {
+        if(c == null || opacity >= 1) return c;
+        return new Color(c.getRed(), c.getGreen(), c.getBlue(), Math.round(c.getAlpha() * Math.max(opacity, 0)));
+    }
+
+    /**
+     * a css color: #rgb, #rrggbb, rgb(r, g, b), a color name from ColorLatte, or none (null)
+     */
+    static Color color(String s) {
+        s = s.trim();
+        if(s.equals("none") || s.equals("transparent")) return null;
+        try {
+            if(s.startsWith("#") && s.length() == 4) {
+                int rgb = Integer.parseInt(s.substring(1), 16);
+                return new Color((rgb >> 8 & 0xf) * 0x11, (rgb >> 4 & 0xf) * 0x11, (rgb & 0xf) * 0x11);
+            }
+            if(s.startsWith("#")) return new Color(Integer.parseInt(s.substring(1), 16));
+            if(s.startsWith("rgb(") && s.endsWith(")")) {
+                String[] parts = s.substring(4, s.length() - 1).split(",");
+                return new Color(Integer.parseInt(parts[0].trim()), Integer.parseInt(parts[1].trim()), Integer.parseInt(parts[2].trim()));
+            }
+        } catch (RuntimeException e) {
+            return Color.BLACK;
+        }
+        Color named = namedColors().get(s.toLowerCase());
+        return named == null ? Color.BLACK : named;
+    }
+
+    private static synchronized Map<String, Color> namedColors() {
+        if(namedColors == null) {
+            Map<String, Color> colors = new HashMap<String, Color>();
+            for(Field f : ColorLatte.class.getFields()) {
+                if(!Modifier.isStatic(f.getModifiers()) || f.getType() != ColorLatte.class) continue;
+                try {
+                    ColorLatte c = (ColorLatte) f.get(null);
+                    colors.put(f.getName().toLowerCase(), new Color(c.getRed(), c.getGreen(), c.getBlue()));
+                } catch (IllegalAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+            namedColors = colors;
+        }
+        return namedColors;
+    }
+}
@@ -0,0 +1,397 @@
+package lattelib;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.events.EventListener;
+import org.w3c.dom.events.EventTarget;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The shapes currently drawn, kept from frame to frame.
+ *
+ * Each shape gets a key when it is drawn, and keeps it until it is removed or
+ * the drawing is cleared.  Keys count up in draw order, so sorting by key gives
+ * the draw order.  Changing a shape's element (setAttribute, setTextContent...)
+ * marks just that shape dirty, so a frame only has to look at what changed.
+ *
+ * Shapes are drawn into layers, stacked in the order they are first used.  A
+ * layer's keys start at its index << LAYER_SHIFT, so everything in a layer is
+ * drawn above the layers before it, and a layer can be cleared without
+ * touching the others.  In the document each layer is a group under the root.
+ */
+class Scene {
+    static final String DEFAULT_LAYER = "default";
+    static final int LAYER_SHIFT = 24;
+    static final int MAX_LAYERS = 128; //keys stay positive ints
+
+    private static final String SLOT = "lattelib.slot";
+    private static final String LAYER = "lattelib.layer";
+    private static final String[] MUTATIONS = {
+            "DOMAttrModified", "DOMCharacterDataModified", "DOMNodeInserted", "DOMNodeRemoved"
+    };
+
+    static class Slot {
+        final int key;
+        final Element element;
+        Shape shape; //null once the element has been changed by hand (a batch's group gets its paths then)
+        boolean dirty = true;
+        boolean removed;
+        boolean cullable = true; //may be left out of frames while it is outside the window
+
+        Slot(int key, Element element) {
+            this.key = key;
+            this.element = element;
+        }
+    }
+
+    static class Layer {
+        final String name;
+        final int index;
+        Element group;
+        final Map<Integer, Slot> slots = new LinkedHashMap<Integer, Slot>();
+        int nextKey;
+
+        Layer(String name, int index) {
+            this.name = name;
+            this.index = index;
+            this.nextKey = index << LAYER_SHIFT;
+        }
+    }
+
+    private final List<Layer> layers = new ArrayList<Layer>();
+    private final Map<String, Layer> layersByName = new HashMap<String, Layer>();
+    private volatile String layerName = DEFAULT_LAYER; //read by other threads drawing, see DrawBuffer
+    private final List<Slot> dirty = new ArrayList<Slot>();
+    private final List<Integer> removed = new ArrayList<Integer>();
+    private Document doc;
+    private Element root;
+    private int size;
+    private SpatialIndex index; //made the first time it is asked for
+
+    private final EventListener mutationListener = evt -> {
+        Node n = (Node) evt.getTarget();
+        boolean structural = evt.getType().equals("DOMNodeInserted") || evt.getType().equals("DOMNodeRemoved");
+        if(structural && (n.getParentNode() == root || isGroup(n.getParentNode()))) return; //that's us adding or removing
+        while(n != null && !isGroup(n.getParentNode())) n = n.getParentNode();
+        if(n == null) return;
+        Slot s = (Slot) n.getUserData(SLOT);
+        if(s == null) return;
+        if(s.shape != null && s.shape.isBatch()) {
+            //the group was empty, its shapes only numbers: they become its paths
+            boolean events = ElementPool.events(doc, false);
+            SvgWriter.expand(s.shape, (Element) n);
+            ElementPool.events(doc, events);
+        }
+        s.shape = null;
+        if(index != null) index.changed(s);
+        markDirty(s);
+    };
+
+    private static boolean isGroup(Node n) {
+        return n != null && n.getUserData(LAYER) != null;
+    }
+
+    /**
+     * start over with an empty drawing.  the keys of everything drawn so far
+     * are reported as removed, unless new shapes take them over.
+     */
+    void reset(Document doc) {
+        for(Layer layer : layers) empty(layer);
+        dirty.clear();
+        if(index != null) index.clear();
+
+        if(root == doc.getDocumentElement()) {
+            for(Layer layer : layers) replaceGroup(layer); //the same document, reused
+            return;
+        }
+        this.doc = doc;
+        root = doc.getDocumentElement();
+        for(Layer layer : layers) {
+            layer.group = group(layer);
+            root.appendChild(layer.group);
+        }
+        for(String type : MUTATIONS) {
+            ((EventTarget) root).addEventListener(type, mutationListener, false);
+        }
+    }
+
+    /**
+     * take everything out of one layer.  its keys are reported as removed,
+     * unless new shapes take them over.
+     */
+    void clearLayer(String name) {
+        Layer layer = layersByName.get(name);
+        if(layer == null) return;
+        empty(layer);
+        for(Iterator<Slot> i = dirty.iterator(); i.hasNext(); ) {
+            if(i.next().removed) i.remove();
+        }
+        replaceGroup(layer);
+    }
+
+    /**
+     * a new group is much quicker than taking the shapes out one by one
+     */
+    private void replaceGroup(Layer layer) {
+        if(!layer.group.hasChildNodes()) return; //already emptied into the element pool
+        Element group = group(layer);
+        root.replaceChild(group, layer.group);
+        layer.group = group;
+    }
+
+    private void empty(Layer layer) {
+        for(Slot s : layer.slots.values()) {
+            s.removed = true;
+            removed.add(s.key);
+            if(index != null) index.removed(s);
+        }
+        size -= layer.slots.size();
+        layer.slots.clear();
+        layer.nextKey = layer.index << LAYER_SHIFT;
+    }
+
+    private Element group(Layer layer) {
+        Element group = doc.createElementNS(root.getNamespaceURI(), "g");
+        group.setUserData(LAYER, layer, null);
+        return group;
+    }
+
+    /**
+     * draw into this layer from now on.  it is made the first time a shape is
+     * drawn into it, on top of all the layers so far.
+     */
+    void setLayer(String name) {
+        layerName = name;
+    }
+
+    String getLayer() {
+        return layerName;
+    }
+
+    /**
+     * the groups the layers' shapes are in, bottom first
+     */
+    List<Element> groups() {
+        List<Element> groups = new ArrayList<Element>(layers.size());
+        for(Layer layer : layers) groups.add(layer.group);
+        return groups;
+    }
+
+    Element group(String name) {
+        Layer layer = layersByName.get(name);
+        return layer == null ? null : layer.group;
+    }
+
+    private Layer layer() {
+        Layer layer = layersByName.get(layerName);
+        if(layer == null) {
+            if(layers.size() == MAX_LAYERS) throw new IllegalStateException("too many layers, at most " + MAX_LAYERS);
+            layer = new Layer(layerName, layers.size());
+            layer.group = group(layer);
+            root.appendChild(layer.group);
+            layers.add(layer);
+            layersByName.put(layerName, layer);
+        }
+        return layer;
+    }
+
+    /**
+     * add an element on top of everything drawn so far
+     */
+    void add(Element e) {
+        add(e, null);
+    }
+
+    /**
+     * add an element on top of everything drawn so far
+     * @param shape the numbers it was drawn from, if it came from a draw function
+     */
+    void add(Element e, Shape shape) {
+        Layer layer = layer();
+        if(layer.nextKey == (layer.index + 1) << LAYER_SHIFT) throw new IllegalStateException("too many shapes in layer " + layer.name);
+        Slot s = new Slot(layer.nextKey++, e);
+        s.shape = shape;
+        e.setUserData(SLOT, s, null);
+        layer.slots.put(s.key, s);
+        size++;
+        dirty.add(s);
+        if(index != null) index.changed(s);
+        layer.group.appendChild(e);
+    }
+
+    private Map<Integer, Slot> slotsOf(int key) {
+        int index = key >>> LAYER_SHIFT;
+        return index < layers.size() ? layers.get(index).slots : Collections.<Integer, Slot>emptyMap();
+    }
+
+    /**
+     * take a shape out of the drawing
+     * @return false if it wasn't drawn
+     */
+    boolean remove(Element e) {
+        Slot s = slotOf(e);
+        if(s == null) return false;
+        s.removed = true;
+        slotsOf(s.key).remove(s.key);
+        size--;
+        removed.add(s.key);
+        if(index != null) index.removed(s);
+        s.element.setUserData(SLOT, null, null);
+        s.element.getParentNode().removeChild(s.element);
+        return true;
+    }
+
+    /**
+     * let a shape be left out of frames while it is outside the window, or not
+     * @return false if it isn't drawn
+     */
+    boolean setCullable(Element e, boolean cullable) {
+        Slot s = slotOf(e);
+        if(s == null) return false;
+        if(s.cullable != cullable) {
+            s.cullable = cullable;
+            markDirty(s);
+        }
+        return true;
+    }
+
+    /**
+     * the key the browser knows a shape by.  from now on it is sent on its
+     * own as markup (never merged into a batch or culled), so the browser
+     * can find it by this key.
+     * @return -1 if it isn't drawn
+     */
+    int keyForBrowser(Element e) {
+        Slot s = slotOf(e);
+        if(s == null) return -1;
+        if(s.shape != null) {
+            s.shape = null;
+            markDirty(s);
+        }
+        return s.key;
+    }
+
+    /**
+     * the shape an element is, or is inside of (drawNoun hands back the image
+     * inside its group), or null if it isn't drawn
+     */
+    private Slot slotOf(Element e) {
+        for(Node n = e; n != null && !isGroup(n); n = n.getParentNode()) {
+            Slot s = (Slot) n.getUserData(SLOT);
+            if(s != null) return s.removed || slotsOf(s.key).get(s.key) != s ? null : s;
+        }
+        return null;
+    }
+
+    /**
+     * the way down from the shape holding an element to the element: the
+     * index among its parent's child elements at each step
+     */
+    List<Integer> path(Element e) {
+        List<Integer> path = new ArrayList<Integer>();
+        for(Node n = e; n != null && n.getUserData(SLOT) == null; n = n.getParentNode()) {
+            int i = 0;
+            for(Node sibling = n.getPreviousSibling(); sibling != null; sibling = sibling.getPreviousSibling()) {
+                if(sibling instanceof Element) i++;
+            }
+            path.add(0, i);
+        }
+        return path;
+    }
+
+    private void markDirty(Slot s) {
+        if(s == null || s.dirty || s.removed) return;
+        s.dirty = true;
+        dirty.add(s);
+    }
+
+    /**
+     * every shape in the drawing, in draw order
+     */
+    Iterable<Slot> slots() {
+        if(layers.size() == 1) return layers.get(0).slots.values();
+        List<Slot> all = new ArrayList<Slot>(size);
+        for(Layer layer : layers) all.addAll(layer.slots.values());
+        return all;
+    }
+
+    /**
+     * the shapes that were added or changed since the last markClean()
+     */
+    List<Slot> dirty() {
+        return dirty;
+    }
+
+    /**
+     * the keys that were removed since the last markClean()
+     */
+    List<Integer> removed() {
+        return removed;
+    }
+
+    /**
+     * everything up to now has been sent
+     */
+    void markClean() {
+        for(Slot s : dirty) s.dirty = false;
+        dirty.clear();
+        removed.clear();
+    }
+
+    /**
+     * the spatial index over the shapes, kept up to date from the first time
+     * it is asked for
+     */
+    SpatialIndex index() {
+        if(index == null) {
+            index = new SpatialIndex();
+            for(Slot s : slots()) index.changed(s);
+        }
+        return index;
+    }
+
+    int layerCount() {
+        return layers.size();
+    }
+
+    /**
+     * the shapes in one layer, in draw order
+     */
+    Collection<Slot> slots(int layer) {
+        return layers.get(layer).slots.values();
+    }
+
+    /**
+     * the shape holding this key, or null
+     */
+    Slot slot(int key) {
+        return slotsOf(key).get(key);
+    }
+
+    /**
+     * one more than the last key given out in a layer
+     */
+    int endKey(int layer) {
+        return layers.get(layer).nextKey;
+    }
+
+    /**
+     * true if a shape currently holds this key
+     */
+    boolean contains(int key) {
+        return slotsOf(key).containsKey(key);
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,265 @@
+package lattelib;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The numbers behind a shape drawn with one of the draw functions, kept next
+ * to its element so frames can be written without reading the element back.
+ *
+ * A shape is only trusted while its element is untouched: once the program
+ * changes the element, the Scene drops the shape and the element's markup is
+ * sent instead.
+ *
+ * A batch (RECTS to POINTS) is many shapes of one kind under a single key.
+ * Its numbers are copied out of the program's arrays and interleaved, stride
+ * numbers per shape, followed by the numbers all of them share; each shape
+ * has its own color in colors.
+ */
+final class Shape {
+    static final int RECT = 1;
+    static final int CIRCLE = 2;
+    static final int ELLIPSE = 3;
+    static final int LINE = 4;
+    static final int TEXT = 5;
+    static final int IMAGE = 6;
+    static final int RECTS = 7;   //x y w h each
+    static final int CIRCLES = 8; //cx cy r each
+    static final int LINES = 9;   //x1 y1 x2 y2 each, then thick
+    static final int POINTS = 10; //x y each, then size
+    static final int SPRITE = 11; //x y w h rot, then the noun's cell in the atlas: x y size, then the atlas's width height
+
+    final int kind;
+    final double[] v;   //rect: x y w h rot, circle: cx cy r, ellipse: cx cy rx ry rot, line: x1 y1 x2 y2 thick,
+                        //text: x y size rot, image: x y w h rot
+    final int rgb;
+    final String text;  //the text drawn, or the image's (or atlas's) href
+    final int[] colors; //a batch's colors, one per shape
+
+    private Shape(int kind, int rgb, String text, double... v) {
+        this.kind = kind;
+        this.v = v;
+        this.rgb = rgb;
+        this.text = text;
+        this.colors = null;
+    }
+
+    private Shape(int kind, double[] v, int[] colors) {
+        this.kind = kind;
+        this.v = v;
+        this.rgb = 0;
+        this.text = null;
+        this.colors = colors;
+    }
+
+    static Shape rect(double x, double y, double w, double h, double rot, ColorLatte color) {
+        return new Shape(RECT, rgb(color), null, x, y, w, h, rot);
+    }
+
+    static Shape circle(double cx, double cy, double r, ColorLatte color) {
+        return new Shape(CIRCLE, rgb(color), null, cx, cy, r);
+    }
+
+    static Shape ellipse(double cx, double cy, double rx, double ry, double rot, ColorLatte color) {
+        return new Shape(ELLIPSE, rgb(color), null, cx, cy, rx, ry, rot);
+    }
+
+    static Shape line(double x1, double y1, double x2, double y2, double thick, ColorLatte color) {
+        return new Shape(LINE, rgb(color), null, x1, y1, x2, y2, thick);
+    }
+
+    static Shape text(String s, double x, double y, int size, double rot, ColorLatte color) {
+        return new Shape(TEXT, rgb(color), s == null ? "" : s, x, y, size, rot);
+    }
+
+    static Shape image(String href, double x, double y, double w, double h, double rot) {
+        return new Shape(IMAGE, 0, href, x, y, w, h, rot);
+    }
+
+    static Shape rects(double[] x, double[] y, double[] w, double[] h, int[] rgb) {
+        return batch(RECTS, rgb, 0, x, y, w, h);
+    }
+
+    static Shape circles(double[] cx, double[] cy, double[] r, int[] rgb) {
+        return batch(CIRCLES, rgb, 0, cx, cy, r);
+    }
+
+    static Shape lines(double[] x1, double[] y1, double[] x2, double[] y2, double thick, int[] rgb) {
+        return batch(LINES, rgb, thick, x1, y1, x2, y2);
+    }
+
+    static Shape points(double[] x, double[] y, double size, int[] rgb) {
+        return batch(POINTS, rgb, size, x, y);
+    }
+
+    /**
+     * copy the program's arrays into one batch.  rgb has a color per shape,
+     * or just one color for all of them.
+     */
+    private static Shape batch(int kind, int[] rgb, double shared, double[]... columns) {
+        int n = columns[0].length;
+        for(double[] c : columns) {
+            if(c.length != n) throw new IllegalArgumentException("arrays have different lengths: " + n + " and " + c.length);
+        }
+        if(rgb.length != n && rgb.length != 1) {
+            throw new IllegalArgumentException("expected " + n + " colors (or just one), got " + rgb.length);
+        }
+        int stride = columns.length;
+        double[] v = new double[n * stride + shared(kind)];
+        for(int j = 0; j < stride; j++) {
+            double[] c = columns[j];
+            for(int i = 0; i < n; i++) v[i * stride + j] = c[i];
+        }
+        if(shared(kind) == 1) v[n * stride] = shared;
+        int[] colors = new int[n];
+        if(rgb.length == n) {
+            for(int i = 0; i < n; i++) colors[i] = rgb[i] & 0xffffff;
+        } else {
+            Arrays.fill(colors, rgb[0] & 0xffffff);
+        }
+        return new Shape(kind, v, colors);
+    }
+
+    /**
+     * true if this shape can be merged with others like it into a batch:
+     * rectangles that aren't rotated, circles and lines
+     */
+    boolean isMergeable() {
+        return kind == RECT && v[4] == 0 || kind == CIRCLE || kind == LINE;
+    }
+
+    /**
+     * true if this and another mergeable shape can go in the same batch: the
+     * same kind, and lines as thick.  batches have a color per shape.
+     */
+    boolean sameStyle(Shape s) {
+        return kind == s.kind && (kind != LINE || v[4] == s.v[4]);
+    }
+
+    /**
+     * one batch holding mergeable shapes of the same style, in order
+     */
+    static Shape merge(List<Shape> shapes) {
+        Shape first = shapes.get(0);
+        int kind = first.kind == RECT ? RECTS : first.kind == CIRCLE ? CIRCLES : LINES;
+        int n = shapes.size(), stride = stride(kind);
+        double[] v = new double[n * stride + shared(kind)];
+        int[] colors = new int[n];
+        for(int i = 0; i < n; i++) {
+            System.arraycopy(shapes.get(i).v, 0, v, i * stride, stride);
+            colors[i] = shapes.get(i).rgb;
+        }
+        if(kind == LINES) v[n * stride] = first.v[4];
+        return new Shape(kind, v, colors);
+    }
+
+    boolean isBatch() {
+        return kind >= RECTS && kind <= POINTS;
+    }
+
+    boolean hasColor() {
+        return kind != IMAGE && kind != SPRITE;
+    }
+
+    /**
+     * numbers per shape in a batch
+     */
+    static int stride(int kind) {
+        switch(kind) {
+            case RECTS: case LINES: return 4;
+            case CIRCLES: return 3;
+            default: return 2;
+        }
+    }
+
+    /**
+     * numbers shared by all the shapes in a batch, after theirs
+     */
+    static int shared(int kind) {
+        return kind == LINES || kind == POINTS ? 1 : 0;
+    }
+
+    static Shape sprite(String atlas, double x, double y, double w, double h, double rot, int[] cell, int atlasWidth, int atlasHeight) {
+        return new Shape(SPRITE, 0, atlas, x, y, w, h, rot, cell[0], cell[1], cell[2], atlasWidth, atlasHeight);
+    }
+
+    /**
+     * true if any part of the shape could be inside the box from 0,0 to w,h.
+     * the bounds are boxes around the rotated shape, so they can be a bit too
+     * big but never too small.  text is assumed to be no wider than its size
+     * per letter, in any direction from where it starts.
+     */
+    boolean overlaps(double w, double h) {
+        switch(kind) {
+            case RECT:
+            case IMAGE:
+            case SPRITE:
+                return rotatedBox(v[0] + v[2] / 2, v[1] + v[3] / 2, v[2] / 2, v[3] / 2, v[4], w, h);
+            case ELLIPSE: {
+                double a = Math.toRadians(v[4]), cos = Math.cos(a), sin = Math.sin(a);
+                double hx = Math.sqrt(v[2] * v[2] * cos * cos + v[3] * v[3] * sin * sin);
+                double hy = Math.sqrt(v[2] * v[2] * sin * sin + v[3] * v[3] * cos * cos);
+                return box(v[0] - hx, v[1] - hy, v[0] + hx, v[1] + hy, w, h);
+            }
+            case CIRCLE:
+                return box(v[0] - v[2], v[1] - v[2], v[0] + v[2], v[1] + v[2], w, h);
+            case LINE:
+                return line(v[0], v[1], v[2], v[3], v[4] / 2, w, h);
+            case TEXT: {
+                double r = v[2] * (text.length() + 1);
+                return box(v[0] - r, v[1] - r, v[0] + r, v[1] + r, w, h);
+            }
+            default:
+                int n = colors.length, stride = stride(kind);
+                double half = shared(kind) == 1 ? v[n * stride] / 2 : 0;
+                for(int i = 0, o = 0; i < n; i++, o += stride) {
+                    boolean in;
+                    switch(kind) {
+                        case RECTS: in = box(v[o], v[o + 1], v[o] + v[o + 2], v[o + 1] + v[o + 3], w, h); break;
+                        case CIRCLES: in = box(v[o] - v[o + 2], v[o + 1] - v[o + 2], v[o] + v[o + 2], v[o + 1] + v[o + 2], w, h); break;
+                        case LINES: in = line(v[o], v[o + 1], v[o + 2], v[o + 3], half, w, h); break;
+                        default: in = box(v[o] - half, v[o + 1] - half, v[o] + half, v[o + 1] + half, w, h);
+                    }
+                    if(in) return true;
+                }
+                return false;
+        }
+    }
+
+    private static boolean rotatedBox(double cx, double cy, double hw, double hh, double rot, double w, double h) {
+        hw = Math.abs(hw);
+        hh = Math.abs(hh);
+        if(rot != 0) {
+            double a = Math.toRadians(rot), cos = Math.abs(Math.cos(a)), sin = Math.abs(Math.sin(a));
+            double x = hw * cos + hh * sin;
+            hh = hw * sin + hh * cos;
+            hw = x;
+        }
+        return box(cx - hw, cy - hh, cx + hw, cy + hh, w, h);
+    }
+
+    private static boolean line(double x1, double y1, double x2, double y2, double half, double w, double h) {
+        return box(Math.min(x1, x2) - half, Math.min(y1, y2) - half, Math.max(x1, x2) + half, Math.max(y1, y2) + half, w, h);
+    }
+
+    private static boolean box(double x0, double y0, double x1, double y1, double w, double h) {
+        //a pixel to spare for antialiasing
+        return Math.max(x0, x1) >= -1 && Math.min(x0, x1) <= w + 1 && Math.max(y0, y1) >= -1 && Math.min(y0, y1) <= h + 1;
+    }
+
+    static int rgb(ColorLatte color) {
+        return (color.getRed() & 0xff) << 16 | (color.getGreen() & 0xff) << 8 | (color.getBlue() & 0xff);
+    }
+
+    public boolean equals(Object o) {
+        if(!(o instanceof Shape)) return false;
+        Shape s = (Shape) o;
+        return kind == s.kind && rgb == s.rgb && Arrays.equals(v, s.v)
+                && (text == null ? s.text == null : text.equals(s.text))
+                && Arrays.equals(colors, s.colors);
+    }
+
+    public int hashCode() {
+        return 31 * (31 * kind + rgb) + Arrays.hashCode(v);
+    }
+}
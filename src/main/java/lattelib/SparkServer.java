@@ -5,9 +5,11 @@ import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
 import org.eclipse.jetty.websocket.api.annotations.OnWebSocketMessage;
 import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import org.eclipse.jetty.websocket.api.extensions.ExtensionConfig;
 import org.json.JSONObject;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.CountDownLatch;
 
 import static spark.Spark.*;
@@ -20,6 +22,20 @@ public class SparkServer {
     protected static CountDownLatch socketConnectionSync = new CountDownLatch(1); //TODO: make this reset!!!
     protected static MessageReceiver messageReceiver;
     protected static Session session;
+    private static volatile FrameRecorder recorder;
+    private static final int FRAGMENT_SIZE = 1 << 16;
+
+    //words that frames are made of, most common last, see primeCompression
+    private static final String DICTIONARY = String.join("",
+            "{\"type\":\"cout\",\"payload\":\"", "<image x=\"", "\" xlink:href=\"resources/nouns/", ".png\"",
+            "<svg x=\"", "\" viewBox=\"", "atlas/nouns-", " class=\"clickable\" name=\"",
+            "<text x=\"", "\" font-size=\"", "\" style=\"fill: #", ";\">", "</text>",
+            "<ellipse cx=\"", "\" rx=\"", "\" ry=\"", "<line x1=\"", "\" y1=\"", "\" x2=\"", "\" y2=\"",
+            "\" stroke=\"#", "\" stroke-width=\"", " transform=\"rotate(", ")\"", "<g>", "</g>",
+            "#000000", "#ffffff", "#ff0000", "#00ff00", "#0000ff",
+            "<circle cx=\"", "\" cy=\"", "\" r=\"",
+            "{\"type\":\"svgp\",\"payload\":{\"base\":", ",\"frame\":", ",\"ops\":[", "]}}", "[\"r\",",
+            "<rect x=\"", "\" y=\"", "\" width=\"", "\" height=\"", "\" fill=\"#", "\"/>\"],[\"u\",");
 
     SparkServer(MessageReceiver messageReceiver) {
         this.messageReceiver = messageReceiver;
@@ -32,6 +48,37 @@ public class SparkServer {
         //be passed as an optional param?
         staticFiles.externalLocation(System.getProperty("user.dir"));
 
+        //the noun atlas never changes under the same name, so it can be cached forever
+        get("/atlas/:file", (request, response) -> {
+            NounAtlas atlas = NounAtlas.get();
+            if(atlas == null || !atlas.file.equals(request.params(":file"))) {
+                response.status(404);
+                return "";
+            }
+            response.type("image/png");
+            response.header("Cache-Control", "public, max-age=31536000, immutable");
+            response.header("ETag", "\"" + atlas.file + "\"");
+            return atlas.png;
+        });
+
+        //smaller copies of local images, made the first time they're asked for
+        get("/img/:size/*", (request, response) -> {
+            byte[] image = null;
+            try {
+                //the splat comes decoded, so it is the file's name as drawImage was given it
+                image = ImageCache.get(Integer.parseInt(request.params(":size")), request.splat()[0]);
+            } catch (NumberFormatException e) {
+                //not one of ours
+            }
+            if(image == null) {
+                response.status(404);
+                return "";
+            }
+            response.type(ImageCache.type(image));
+            response.header("Cache-Control", "public, max-age=31536000, immutable"); //the href changes with the file
+            return image;
+        });
+
 
         init();
         awaitInitialization(); // Wait for server to be initialized
@@ -42,18 +89,96 @@ public class SparkServer {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * the permessage-deflate settings the browser and jetty agreed on, or
+     * null if messages aren't compressed
+     */
+    private static ExtensionConfig deflate() {
+        for(ExtensionConfig e : session.getUpgradeResponse().getExtensions()) {
+            if(e.getName().equals("permessage-deflate")) return e;
+        }
+        return null;
+    }
 
+    boolean isCompressed() {
+        return deflate() != null;
+    }
+
+    /**
+     * send the words frames are made of, so the next frames can refer back to
+     * them.  this only works while the server keeps its compression history
+     * from message to message ("context takeover", which is on unless
+     * server_no_context_takeover was agreed on), so otherwise nothing is sent.
+     * @return true if it was sent
+     */
+    synchronized boolean primeCompression() {
+        ExtensionConfig deflate = deflate();
+        if(deflate == null || deflate.getParameterKeys().contains("server_no_context_takeover")) return false;
+        sendText("{\"type\":\"dict\",\"payload\":" + JSONObject.quote(DICTIONARY) + "}");
+        return true;
+    }
+
+    /**
+     * write every message from now on to a file, see FrameRecorder
+     * @param file the file, or null to stop recording
+     */
+    static void record(String file) throws IOException {
+        FrameRecorder old = recorder;
+        recorder = file == null ? null : new FrameRecorder(file);
+        if(old != null) old.close();
     }
 
     void sendMessage(String type, String payload) {
+        send(type, payload);
+    }
 
+    void sendMessage(String type, JSONObject payload) {
+        send(type, payload);
+    }
 
+    private void send(String type, Object payload) {
         JSONObject json = new JSONObject();
         json.put("type", type);
         json.put("payload", payload);
 
+        sendText(json.toString());
+    }
+
+    /**
+     * send a message that is already json.  big messages are streamed out as
+     * partial frames so they never have to be copied into one giant string.
+     */
+    synchronized void sendText(CharSequence message) {
         try {
-            session.getRemote().sendString(json.toString());
+            FrameRecorder r = recorder;
+            if(r != null) r.text(FrameRecorder.SENT_TEXT, message);
+            if(message.length() <= FRAGMENT_SIZE) {
+                session.getRemote().sendString(message.toString());
+                return;
+            }
+            int start = 0;
+            while(start < message.length()) {
+                int end = Math.min(start + FRAGMENT_SIZE, message.length());
+                if(end < message.length() && Character.isHighSurrogate(message.charAt(end - 1))) end--;
+                session.getRemote().sendPartialString(message.subSequence(start, end).toString(), end == message.length());
+                start = end;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * send a binary message
+     */
+    synchronized void sendBytes(ByteBuffer message) {
+        try {
+            FrameRecorder r = recorder;
+            if(r != null) r.binary(message);
+            session.getRemote().sendBytes(message);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -64,8 +189,8 @@ public class SparkServer {
     public static class SparkWebSocket {
         @OnWebSocketConnect
         public void connected(Session session) {
-            SparkServer.socketConnectionSync.countDown();
             SparkServer.session = session;
+            SparkServer.socketConnectionSync.countDown();
             System.err.println("socket open");
         }
 
@@ -78,6 +203,8 @@ public class SparkServer {
         @OnWebSocketMessage
         public void message(Session session, String message) throws IOException {
             //System.out.println("Got: " + message);   // Print message
+            FrameRecorder r = recorder;
+            if(r != null) r.text(FrameRecorder.RECEIVED_TEXT, message);
 
             JSONObject o = new JSONObject(message);
             messageReceiver.receive(o);
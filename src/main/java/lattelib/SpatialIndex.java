@@ -0,0 +1,375 @@
+package lattelib;
+
+import org.apache.batik.parser.AWTTransformProducer;
+import org.apache.batik.parser.ParseException;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.awt.BasicStroke;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Area;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A uniform grid over the shapes in the scene, to find the shapes at a point,
+ * the shapes in a box and the pairs of shapes that touch without looking at
+ * every shape.
+ *
+ * Each shape's outline is put in every cell its bounds cover.  A point only
+ * has to look at the shapes in its cell, and two shapes can only touch if they
+ * share a cell.  Shapes covering a huge number of cells are kept in a list of
+ * their own instead, and are looked at by every query.
+ *
+ * The scene tells the index which shapes were drawn, changed and removed; the
+ * outlines are only worked out again at the next query, so a shape that moves
+ * many times between queries costs one update.
+ */
+class SpatialIndex {
+    static final int CELL = 64; //pixels
+    private static final int MAX_CELLS = 1024; //per shape, more and it is oversized
+    private static final double LETTER = 0.6; //width of a letter, times the font size
+
+    private static class Entry {
+        final Scene.Slot slot;
+        final java.awt.Shape outline;
+        final Rectangle2D bounds;
+        final int x0, y0, x1, y1; //the cells it covers
+
+        Entry(Scene.Slot slot, java.awt.Shape outline) {
+            this.slot = slot;
+            this.outline = outline;
+            bounds = outline.getBounds2D();
+            x0 = cell(bounds.getMinX());
+            y0 = cell(bounds.getMinY());
+            x1 = cell(bounds.getMaxX());
+            y1 = cell(bounds.getMaxY());
+        }
+
+        boolean oversized() {
+            return (long) (x1 - x0 + 1) * (y1 - y0 + 1) > MAX_CELLS;
+        }
+    }
+
+    private final Map<Long, List<Entry>> cells = new HashMap<Long, List<Entry>>();
+    private final Map<Integer, Entry> entries = new HashMap<Integer, Entry>();
+    private final List<Entry> oversized = new ArrayList<Entry>();
+    private final Set<Scene.Slot> changed = new LinkedHashSet<Scene.Slot>();
+    private final Set<Integer> removed = new HashSet<Integer>(); //keys to take out of the cells
+
+    private static final Comparator<Entry> DRAW_ORDER = Comparator.comparingInt(e -> e.slot.key);
+
+    /**
+     * a shape was drawn or changed
+     */
+    void changed(Scene.Slot s) {
+        changed.add(s);
+    }
+
+    /**
+     * a shape was taken out of the drawing.  nothing of it is kept until the
+     * next query but its key, and only if it was in the cells, so a program
+     * drawing lots between queries doesn't pile up old shapes.
+     */
+    void removed(Scene.Slot s) {
+        changed.remove(s);
+        if(entries.containsKey(s.key)) removed.add(s.key);
+    }
+
+    /**
+     * everything was taken out of the drawing
+     */
+    void clear() {
+        cells.clear();
+        entries.clear();
+        oversized.clear();
+        changed.clear();
+        removed.clear();
+    }
+
+    /**
+     * the shapes whose outline holds the point, the topmost first
+     */
+    List<Element> at(double x, double y) {
+        update();
+        List<Entry> found = new ArrayList<Entry>();
+        List<Entry> cell = cells.get(cellKey(cell(x), cell(y)));
+        if(cell != null) {
+            for(Entry e : cell) if(e.outline.contains(x, y)) found.add(e);
+        }
+        for(Entry e : oversized) if(e.outline.contains(x, y)) found.add(e);
+        found.sort(DRAW_ORDER.reversed());
+        return elements(found);
+    }
+
+    /**
+     * the shapes whose outline touches the box, in draw order
+     */
+    List<Element> in(Rectangle2D box) {
+        update();
+        Map<Entry, Boolean> seen = new IdentityHashMap<Entry, Boolean>();
+        List<Entry> found = new ArrayList<Entry>();
+        for(int cx = cell(box.getMinX()); cx <= cell(box.getMaxX()); cx++) {
+            for(int cy = cell(box.getMinY()); cy <= cell(box.getMaxY()); cy++) {
+                List<Entry> cell = cells.get(cellKey(cx, cy));
+                if(cell == null) continue;
+                for(Entry e : cell) {
+                    if(seen.put(e, Boolean.TRUE) == null && e.outline.intersects(box)) found.add(e);
+                }
+            }
+        }
+        for(Entry e : oversized) if(e.outline.intersects(box)) found.add(e);
+        found.sort(DRAW_ORDER);
+        return elements(found);
+    }
+
+    /**
+     * every pair of shapes whose outlines touch, the lower one first, in draw order
+     */
+    List<Element[]> collisions() {
+        update();
+        List<Entry[]> pairs = new ArrayList<Entry[]>();
+        for(Map.Entry<Long, List<Entry>> cell : cells.entrySet()) {
+            List<Entry> here = cell.getValue();
+            int cx = (int) (cell.getKey() >> 32), cy = (int) (long) cell.getKey();
+            for(int i = 0; i < here.size(); i++) {
+                for(int j = i + 1; j < here.size(); j++) {
+                    Entry a = here.get(i), b = here.get(j);
+                    //two shapes can share many cells: only the first one they share counts
+                    if(Math.max(a.x0, b.x0) != cx || Math.max(a.y0, b.y0) != cy) continue;
+                    if(touch(a, b)) pairs.add(pair(a, b));
+                }
+            }
+        }
+        for(int i = 0; i < oversized.size(); i++) {
+            Entry a = oversized.get(i);
+            for(int j = i + 1; j < oversized.size(); j++) {
+                if(touch(a, oversized.get(j))) pairs.add(pair(a, oversized.get(j)));
+            }
+            for(Entry b : entries.values()) {
+                if(!b.oversized() && touch(a, b)) pairs.add(pair(a, b));
+            }
+        }
+        pairs.sort(Comparator.<Entry[]>comparingInt(p -> p[0].slot.key).thenComparingInt(p -> p[1].slot.key));
+        List<Element[]> result = new ArrayList<Element[]>(pairs.size());
+        for(Entry[] p : pairs) result.add(new Element[] {p[0].slot.element, p[1].slot.element});
+        return result;
+    }
+
+    private static Entry[] pair(Entry a, Entry b) {
+        return a.slot.key < b.slot.key ? new Entry[] {a, b} : new Entry[] {b, a};
+    }
+
+    private static boolean touch(Entry a, Entry b) {
+        if(!a.bounds.intersects(b.bounds)) return false;
+        java.awt.Shape p = a.outline, q = b.outline;
+        if(p instanceof Ellipse2D && q instanceof Ellipse2D && isCircle((Ellipse2D) p) && isCircle((Ellipse2D) q)) {
+            Ellipse2D c = (Ellipse2D) p, d = (Ellipse2D) q;
+            double r = (c.getWidth() + d.getWidth()) / 2;
+            double dx = c.getCenterX() - d.getCenterX(), dy = c.getCenterY() - d.getCenterY();
+            return dx * dx + dy * dy <= r * r;
+        }
+        if(p instanceof Rectangle2D) return q.intersects((Rectangle2D) p);
+        if(q instanceof Rectangle2D) return p.intersects((Rectangle2D) q);
+        Area area = new Area(p);
+        area.intersect(new Area(q));
+        return !area.isEmpty();
+    }
+
+    private static boolean isCircle(Ellipse2D e) {
+        return e.getWidth() == e.getHeight();
+    }
+
+    private static List<Element> elements(List<Entry> found) {
+        List<Element> list = new ArrayList<Element>(found.size());
+        for(Entry e : found) list.add(e.slot.element);
+        return list;
+    }
+
+    /**
+     * put what changed since the last query in the right cells
+     */
+    private void update() {
+        for(int key : removed) unindex(key);
+        removed.clear();
+        for(Scene.Slot s : changed) {
+            unindex(s.key);
+            if(s.removed) continue;
+            java.awt.Shape outline = s.shape != null ? outline(s.shape) : outline(s.element, new AffineTransform());
+            if(outline == null || outline.getBounds2D().isEmpty()) continue;
+            Entry e = new Entry(s, outline);
+            entries.put(s.key, e);
+            if(e.oversized()) {
+                oversized.add(e);
+                continue;
+            }
+            for(int cx = e.x0; cx <= e.x1; cx++) {
+                for(int cy = e.y0; cy <= e.y1; cy++) {
+                    cells.computeIfAbsent(cellKey(cx, cy), k -> new ArrayList<Entry>()).add(e);
+                }
+            }
+        }
+        changed.clear();
+    }
+
+    private void unindex(int key) {
+        Entry e = entries.remove(key);
+        if(e == null) return;
+        if(e.oversized()) {
+            oversized.remove(e);
+            return;
+        }
+        for(int cx = e.x0; cx <= e.x1; cx++) {
+            for(int cy = e.y0; cy <= e.y1; cy++) {
+                List<Entry> cell = cells.get(cellKey(cx, cy));
+                if(cell == null) continue;
+                cell.remove(e);
+                if(cell.isEmpty()) cells.remove(cellKey(cx, cy));
+            }
+        }
+    }
+
+    private static int cell(double v) {
+        return (int) Math.floor(v / CELL);
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return (long) cx << 32 | (cy & 0xffffffffL);
+    }
+
+    /**
+     * the outline of a shape from the draw functions, from its numbers
+     */
+    static java.awt.Shape outline(Shape s) {
+        double[] v = s.v;
+        switch(s.kind) {
+            case Shape.RECT:
+            case Shape.IMAGE:
+            case Shape.SPRITE:
+                return rotate(new Rectangle2D.Double(v[0], v[1], v[2], v[3]), v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+            case Shape.CIRCLE:
+                return new Ellipse2D.Double(v[0] - v[2], v[1] - v[2], 2 * v[2], 2 * v[2]);
+            case Shape.ELLIPSE:
+                return rotate(new Ellipse2D.Double(v[0] - v[2], v[1] - v[3], 2 * v[2], 2 * v[3]), v[4], v[0], v[1]);
+            case Shape.LINE:
+                return line(v[0], v[1], v[2], v[3], v[4]);
+            case Shape.TEXT:
+                return rotate(new Rectangle2D.Double(v[0], v[1] - v[2], LETTER * v[2] * s.text.length(), v[2]), v[3], v[0], v[1]);
+            default:
+                if(!s.isBatch()) return null;
+                Path2D.Double all = new Path2D.Double();
+                int n = s.colors.length, stride = Shape.stride(s.kind);
+                double shared = Shape.shared(s.kind) == 1 ? v[n * stride] : 0;
+                for(int o = 0; o < n * stride; o += stride) {
+                    switch(s.kind) {
+                        case Shape.RECTS: all.append(new Rectangle2D.Double(v[o], v[o + 1], v[o + 2], v[o + 3]), false); break;
+                        case Shape.CIRCLES: all.append(new Ellipse2D.Double(v[o] - v[o + 2], v[o + 1] - v[o + 2], 2 * v[o + 2], 2 * v[o + 2]), false); break;
+                        case Shape.LINES: all.append(line(v[o], v[o + 1], v[o + 2], v[o + 3], shared), false); break;
+                        case Shape.POINTS: all.append(new Rectangle2D.Double(v[o] - shared / 2, v[o + 1] - shared / 2, shared, shared), false); break;
+                    }
+                }
+                return all;
+        }
+    }
+
+    /**
+     * the outline of any element, from its attributes: the basic svg shapes,
+     * text (roughly), images, and groups and nested svg as everything in them
+     */
+    static java.awt.Shape outline(Element e, AffineTransform parent) {
+        AffineTransform t = parent;
+        String transform = e.getAttribute("transform");
+        if(!transform.isEmpty()) {
+            try {
+                t = new AffineTransform(parent);
+                t.concatenate(AWTTransformProducer.createAffineTransform(transform));
+            } catch (ParseException ex) {
+                ex.printStackTrace();
+            }
+        }
+        java.awt.Shape local;
+        switch(e.getLocalName() == null ? e.getTagName() : e.getLocalName()) {
+            case "g":
+            case "svg":
+                if(e.getTagName().equals("svg") && e.hasAttribute("width") && e.hasAttribute("height")) {
+                    local = new Rectangle2D.Double(number(e, "x"), number(e, "y"), number(e, "width"), number(e, "height"));
+                    break;
+                }
+                Path2D.Double all = new Path2D.Double();
+                for(Node c = e.getFirstChild(); c != null; c = c.getNextSibling()) {
+                    java.awt.Shape child = c instanceof Element ? outline((Element) c, t) : null;
+                    if(child != null) all.append(child, false);
+                }
+                return all.getCurrentPoint() == null ? null : all;
+            case "rect":
+            case "image":
+                local = new Rectangle2D.Double(number(e, "x"), number(e, "y"), number(e, "width"), number(e, "height"));
+                break;
+            case "circle":
+                double r = number(e, "r");
+                local = new Ellipse2D.Double(number(e, "cx") - r, number(e, "cy") - r, 2 * r, 2 * r);
+                break;
+            case "ellipse":
+                double rx = number(e, "rx"), ry = number(e, "ry");
+                local = new Ellipse2D.Double(number(e, "cx") - rx, number(e, "cy") - ry, 2 * rx, 2 * ry);
+                break;
+            case "line":
+                local = line(number(e, "x1"), number(e, "y1"), number(e, "x2"), number(e, "y2"), strokeWidth(e));
+                break;
+            case "polyline":
+            case "path":
+                local = Rasterizer.path(e);
+                if(local != null && "none".equals(Rasterizer.property(e, "fill"))) local = new BasicStroke((float) strokeWidth(e)).createStrokedShape(local);
+                break;
+            case "polygon":
+                local = Rasterizer.path(e);
+                break;
+            case "text":
+                String s = e.getTextContent();
+                String fontSize = Rasterizer.property(e, "font-size");
+                double size = fontSize == null ? 16 : Rasterizer.parse(fontSize, 16);
+                local = new Rectangle2D.Double(number(e, "x"), number(e, "y") - size, LETTER * size * (s == null ? 0 : s.length()), size);
+                break;
+            default:
+                return null;
+        }
+        if(local == null || t.isIdentity()) return local;
+        if(local instanceof Ellipse2D && t.getType() == AffineTransform.TYPE_TRANSLATION) {
+            Ellipse2D el = (Ellipse2D) local;
+            return new Ellipse2D.Double(el.getX() + t.getTranslateX(), el.getY() + t.getTranslateY(), el.getWidth(), el.getHeight());
+        }
+        return t.createTransformedShape(local);
+    }
+
+    private static double number(Element e, String name) {
+        return Rasterizer.number(e, name);
+    }
+
+    private static double strokeWidth(Element e) {
+        String width = Rasterizer.property(e, "stroke-width");
+        return width == null ? 1 : Rasterizer.parse(width, 1);
+    }
+
+    /**
+     * a line as the area its stroke covers, at least a pixel wide so it can be hit
+     */
+    private static java.awt.Shape line(double x1, double y1, double x2, double y2, double thick) {
+        return new BasicStroke((float) Math.max(thick, 1)).createStrokedShape(new Line2D.Double(x1, y1, x2, y2));
+    }
+
+    private static java.awt.Shape rotate(java.awt.Shape s, double rot, double cx, double cy) {
+        if(rot == 0) return s;
+        return AffineTransform.getRotateInstance(Math.toRadians(rot), cx, cy).createTransformedShape(s);
+    }
+}
@@ -0,0 +1,366 @@
+package lattelib;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Writes svg markup and json straight into a reusable buffer, without going
+ * through a Transformer.  Numbers are written with at most three decimals.
+ */
+class SvgWriter {
+    private static final int MAX_KEPT_CAPACITY = 1 << 22; //don't hang on to more than ~8MB between frames
+    private static final ThreadLocal<StringBuilder> scratch = ThreadLocal.withInitial(() -> new StringBuilder(24));
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private StringBuilder buf = new StringBuilder(1024);
+
+    StringBuilder buffer() {
+        return buf;
+    }
+
+    int length() {
+        return buf.length();
+    }
+
+    /**
+     * empty the buffer so it can be used for the next frame
+     */
+    void reset() {
+        if(buf.capacity() > MAX_KEPT_CAPACITY) buf = new StringBuilder(1024);
+        else buf.setLength(0);
+    }
+
+    SvgWriter append(char c) {
+        buf.append(c);
+        return this;
+    }
+
+    SvgWriter append(String s) {
+        buf.append(s);
+        return this;
+    }
+
+    SvgWriter append(int i) {
+        buf.append(i);
+        return this;
+    }
+
+    /**
+     * write a number with at most three decimals, dropping trailing zeros
+     */
+    SvgWriter number(double v) {
+        number(buf, v);
+        return this;
+    }
+
+    /**
+     * write an element and everything inside it
+     */
+    SvgWriter element(Element e) {
+        String name = e.getNodeName();
+        buf.append('<').append(name);
+        NamedNodeMap attributes = e.getAttributes();
+        for(int i = 0; i < attributes.getLength(); i++) {
+            Node a = attributes.item(i);
+            buf.append(' ').append(a.getNodeName()).append("=\"");
+            escape(a.getNodeValue(), true);
+            buf.append('"');
+        }
+        Node child = e.getFirstChild();
+        if(child == null) {
+            buf.append("/>");
+            return this;
+        }
+        buf.append('>');
+        for(; child != null; child = child.getNextSibling()) {
+            switch(child.getNodeType()) {
+                case Node.ELEMENT_NODE:
+                    element((Element) child);
+                    break;
+                case Node.TEXT_NODE:
+                case Node.CDATA_SECTION_NODE:
+                    escape(child.getNodeValue(), false);
+                    break;
+                default:
+                    break; //comments and processing instructions aren't drawn
+            }
+        }
+        buf.append("</").append(name).append('>');
+        return this;
+    }
+
+    /**
+     * write the markup for a shape straight from its numbers
+     */
+    SvgWriter shape(Shape s) {
+        double[] v = s.v;
+        switch(s.kind) {
+            case Shape.RECT:
+                buf.append("<rect x=\"");
+                number(v[0]).append("\" y=\"").number(v[1]).append("\" width=\"").number(v[2])
+                        .append("\" height=\"").number(v[3]).append("\" fill=\"").color(s.rgb).append('"');
+                rotate(v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+                buf.append("/>");
+                break;
+            case Shape.CIRCLE:
+                buf.append("<circle cx=\"");
+                number(v[0]).append("\" cy=\"").number(v[1]).append("\" r=\"").number(v[2])
+                        .append("\" fill=\"").color(s.rgb).append("\"/>");
+                break;
+            case Shape.ELLIPSE:
+                buf.append("<ellipse cx=\"");
+                number(v[0]).append("\" cy=\"").number(v[1]).append("\" rx=\"").number(v[2])
+                        .append("\" ry=\"").number(v[3]).append('"');
+                rotate(v[4], v[0], v[1]);
+                buf.append(" fill=\"");
+                color(s.rgb).append("\"/>");
+                break;
+            case Shape.LINE:
+                buf.append("<line x1=\"");
+                number(v[0]).append("\" y1=\"").number(v[1]).append("\" x2=\"").number(v[2])
+                        .append("\" y2=\"").number(v[3]).append("\" stroke=\"").color(s.rgb)
+                        .append("\" stroke-width=\"").number(v[4]).append("\"/>");
+                break;
+            case Shape.TEXT:
+                buf.append("<text x=\"");
+                number(v[0]).append("\" y=\"").number(v[1]).append("\" font-size=\"").number(v[2])
+                        .append("\" style=\"fill: ").color(s.rgb).append(";\"");
+                rotate(v[3], v[0], v[1]);
+                buf.append('>');
+                escape(s.text, false);
+                buf.append("</text>");
+                break;
+            case Shape.IMAGE:
+                buf.append("<image x=\"");
+                number(v[0]).append("\" y=\"").number(v[1]).append("\" width=\"").number(v[2])
+                        .append("\" height=\"").number(v[3]).append("\" xlink:href=\"");
+                escape(s.text, true);
+                buf.append('"');
+                rotate(v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+                buf.append("/>");
+                break;
+            case Shape.SPRITE:
+                //the noun's cell of the atlas, fitted into the box like an image
+                buf.append("<g");
+                rotate(v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+                buf.append("><svg x=\"");
+                number(v[0]).append("\" y=\"").number(v[1]).append("\" width=\"").number(v[2])
+                        .append("\" height=\"").number(v[3]).append("\" viewBox=\"").number(v[5]).append(' ')
+                        .number(v[6]).append(' ').number(v[7]).append(' ').number(v[7])
+                        .append("\"><image width=\"").number(v[8]).append("\" height=\"").number(v[9])
+                        .append("\" xlink:href=\"");
+                escape(s.text, true);
+                buf.append("\"/></svg></g>");
+                break;
+            case Shape.RECTS:
+            case Shape.CIRCLES:
+            case Shape.LINES:
+            case Shape.POINTS:
+                batch(s);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown shape " + s.kind);
+        }
+        return this;
+    }
+
+    /**
+     * a batch is a group with one path for each run of shapes of the same
+     * color, so the browser has a handful of nodes instead of one per shape
+     */
+    private void batch(Shape s) {
+        int n = s.colors.length;
+        buf.append("<g>");
+        for(int i = 0; i < n; ) {
+            int rgb = s.colors[i];
+            if(s.kind == Shape.LINES) {
+                buf.append("<path fill=\"none\" stroke=\"");
+                color(rgb).append("\" stroke-width=\"").number(s.v[n * Shape.stride(s.kind)]);
+            } else {
+                buf.append("<path fill=\"");
+                color(rgb);
+            }
+            buf.append("\" d=\"");
+            i = run(s, i);
+            buf.append("\"/>");
+        }
+        buf.append("</g>");
+    }
+
+    /**
+     * put a batch's paths into its group as elements, in front of whatever
+     * the group has: once the program changes the group, it is drawn (and
+     * sent) like any other element, with its own attributes around the paths
+     */
+    static void expand(Shape s, Element group) {
+        SvgWriter w = new SvgWriter();
+        Node first = group.getFirstChild();
+        int n = s.colors.length;
+        for(int i = 0; i < n; ) {
+            Element path = group.getOwnerDocument().createElementNS(group.getNamespaceURI(), "path");
+            w.reset();
+            w.color(s.colors[i]);
+            if(s.kind == Shape.LINES) {
+                path.setAttributeNS(null, "fill", "none");
+                path.setAttributeNS(null, "stroke", w.toString());
+                path.setAttributeNS(null, "stroke-width", format(s.v[n * Shape.stride(s.kind)]));
+            } else {
+                path.setAttributeNS(null, "fill", w.toString());
+            }
+            w.reset();
+            i = w.run(s, i);
+            path.setAttributeNS(null, "d", w.toString());
+            group.insertBefore(path, first);
+        }
+    }
+
+    /**
+     * write the path data of the run of shapes of the same color starting at i
+     * @return where the next run starts
+     */
+    private int run(Shape s, int i) {
+        double[] v = s.v;
+        int n = s.colors.length, stride = Shape.stride(s.kind), rgb = s.colors[i];
+        double shared = Shape.shared(s.kind) == 1 ? v[n * stride] : 0;
+        for(int o = i * stride; i < n && s.colors[i] == rgb; i++, o += stride) {
+            switch(s.kind) {
+                case Shape.RECTS:
+                    if(v[o + 2] > 0 && v[o + 3] > 0) square(v[o], v[o + 1], v[o + 2], v[o + 3]);
+                    break;
+                case Shape.CIRCLES:
+                    double r = v[o + 2];
+                    if(r <= 0) break;
+                    buf.append('M');
+                    number(v[o] - r).append(' ').number(v[o + 1]).append('a').number(r).append(' ').number(r)
+                            .append(" 0 1 0 ").number(2 * r).append(" 0a").number(r).append(' ').number(r)
+                            .append(" 0 1 0 ").number(-2 * r).append(" 0z");
+                    break;
+                case Shape.LINES:
+                    buf.append('M');
+                    number(v[o]).append(' ').number(v[o + 1]).append('L').number(v[o + 2]).append(' ').number(v[o + 3]);
+                    break;
+                case Shape.POINTS:
+                    if(shared > 0) square(v[o] - shared / 2, v[o + 1] - shared / 2, shared, shared);
+                    break;
+            }
+        }
+        return i;
+    }
+
+    private void square(double x, double y, double w, double h) {
+        buf.append('M');
+        number(x).append(' ').number(y).append('h').number(w).append('v').number(h).append('h').number(-w).append('z');
+    }
+
+    private void rotate(double rot, double cx, double cy) {
+        if(rot == 0) return;
+        buf.append(" transform=\"rotate(");
+        number(rot).append(' ').number(cx).append(' ').number(cy).append(")\"");
+    }
+
+    /**
+     * write a color as #rrggbb
+     */
+    SvgWriter color(int rgb) {
+        buf.append('#');
+        for(int shift = 20; shift >= 0; shift -= 4) {
+            buf.append(HEX[(rgb >> shift) & 0xf]);
+        }
+        return this;
+    }
+
+    /**
+     * write a quoted json string
+     */
+    SvgWriter jsonString(CharSequence s) {
+        buf.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '"': buf.append("\\\""); break;
+                case '\\': buf.append("\\\\"); break;
+                case '\n': buf.append("\\n"); break;
+                case '\r': buf.append("\\r"); break;
+                case '\t': buf.append("\\t"); break;
+                default:
+                    if(c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        buf.append("\\u");
+                        String hex = Integer.toHexString(c);
+                        for(int pad = hex.length(); pad < 4; pad++) buf.append('0');
+                        buf.append(hex);
+                    } else {
+                        buf.append(c);
+                    }
+            }
+        }
+        buf.append('"');
+        return this;
+    }
+
+    /**
+     * true if the buffer holds exactly this string
+     */
+    boolean contentEquals(String s) {
+        if(s == null || s.length() != buf.length()) return false;
+        for(int i = buf.length() - 1; i >= 0; i--) {
+            if(buf.charAt(i) != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    public String toString() {
+        return buf.toString();
+    }
+
+    private void escape(String s, boolean attribute) {
+        if(s == null) return;
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '&': buf.append("&amp;"); break;
+                case '<': buf.append("&lt;"); break;
+                case '>': buf.append("&gt;"); break;
+                case '"': if(attribute) buf.append("&quot;"); else buf.append(c); break;
+                case '\n':
+                case '\r': if(attribute) buf.append(' '); else buf.append(c); break;
+                default: buf.append(c);
+            }
+        }
+    }
+
+    /**
+     * format a number the way the writer does, for use in attribute values
+     */
+    static String format(double v) {
+        StringBuilder sb = scratch.get();
+        sb.setLength(0);
+        number(sb, v);
+        return sb.toString();
+    }
+
+    static void number(StringBuilder sb, double v) {
+        if(Double.isNaN(v) || Double.isInfinite(v) || Math.abs(v) >= 1e15) {
+            sb.append(v);
+            return;
+        }
+        long scaled = Math.round(v * 1000);
+        if(scaled < 0) {
+            sb.append('-');
+            scaled = -scaled;
+        }
+        sb.append(scaled / 1000);
+        int frac = (int) (scaled % 1000);
+        if(frac != 0) {
+            sb.append('.');
+            sb.append((char) ('0' + frac / 100));
+            frac %= 100;
+            if(frac != 0) {
+                sb.append((char) ('0' + frac / 10));
+                frac %= 10;
+                if(frac != 0) sb.append((char) ('0' + frac));
+            }
+        }
+    }
+}
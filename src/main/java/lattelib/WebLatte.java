@@ -1,44 +1,80 @@
 package lattelib;
 
 import org.apache.batik.dom.svg.SVGDOMImplementation;
+import org.json.JSONObject;
 import org.w3c.dom.DOMImplementation;
 import org.w3c.dom.Document;
 import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
 import org.xml.sax.SAXException;
 
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
 import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.io.StringWriter;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
 
 /**
  * Created by charlie on 7/19/16.
  */
 public class WebLatte  {
-    private List<Element> draws = new LinkedList<Element>();
+    private Scene scene = new Scene();
     DOMImplementation impl = SVGDOMImplementation.getDOMImplementation();
     String svgNS = SVGDOMImplementation.SVG_NAMESPACE_URI;
     Document svgdoc;
-    private Transformer transformer;
-    private SparkServer sparkServer;
+    private WidgetTree widgets;
+    private final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>(); //for drawSVGElement
+    private SparkServer sparkServer; //null in headless mode
+    private ConsoleBuffer console; //null in headless mode
+    private FrameScheduler scheduler;
+    private Rasterizer rasterizer; //headless mode only
+    private boolean parallelRendering = true;
+    private ElementPool pool; //null unless pooling
+    private final Map<Integer, Animation> animations = new ConcurrentHashMap<Integer, Animation>(); //running in the browser, by id
+    private final AtomicInteger animationCount = new AtomicInteger(); //ids, animate() can be called from any thread
+    private volatile GameLoop loop; //while run() is running
+    private GameLoop stopped; //the last one that ran, for its frame times
+    private final List<Plot> windowPlots = new CopyOnWriteArrayList<Plot>(); //plots that follow the window's size
+    private final Thread drawingThread = Thread.currentThread(); //the one thread that changes the scene
+    private final ThreadLocal<DrawBuffer> drawBuffer = new ThreadLocal<DrawBuffer>(); //where another thread's shapes go
+    private final List<DrawBuffer> drawBuffers = new ArrayList<DrawBuffer>(); //every thread's, in order
+    private final ThreadLocal<Document> scratch = ThreadLocal.withInitial(() -> {
+        //other threads build their shapes in a document of their own, without mutation events;
+        //DrawBuffer checks whether they were changed before they are added
+        Document doc = impl.createDocument(svgNS, "svg", null);
+        ElementPool.events(doc, false);
+        return doc;
+    });
 
+    private static final List<String> EASINGS = Arrays.asList("linear", "ease-in", "ease-out", "ease-in-out");
 
-    protected Map<String, String> dataset = new HashMap<String, String>();
+
+    protected Map<String, String> dataset = new ConcurrentHashMap<String, String>();
     protected CountDownLatch clickLatch = new CountDownLatch(1);
     protected CountDownLatch inputLatch;
     protected CountDownLatch loginLatch;
     protected CountDownLatch sizeLatch = new CountDownLatch(1);
     protected String clickValue;
+    protected volatile double[] clickPoint; //where a canvas was clicked, for the drawing thread to resolve
 
 
 
@@ -48,11 +84,15 @@ public class WebLatte  {
     public WebLatte() {
 //        super("localhost", 8081, new File("webroot/"), true); //last elem is quiet
         System.out.println("\nRunning! Point chrome to http://localhost:8081/");
+        NounAtlas.buildInBackground();
 
         sparkServer = new SparkServer(json -> {
             if(json.getString("type").equals("click")) {
                 clickValue=json.getString("name");
                 clickLatch.countDown();
+            } else if (json.getString("type").equals("click-at")) {
+                clickPoint = new double[] {json.getDouble("x"), json.getDouble("y")};
+                clickLatch.countDown();
             } else if (json.getString("type").equals("in-enter")) {
                     inputLatch.countDown();
             } else if (json.getString("type").equals("login-success")) {
@@ -63,28 +103,81 @@ public class WebLatte  {
             } else if (json.getString("type").equals("resize")) {
                 dataset.put("window-width", ""+json.getInt("width"));
                 dataset.put("window-height", ""+json.getInt("height"));
+                if(scheduler != null) scheduler.setViewport(json.getInt("width"), json.getInt("height"));
                 sizeLatch.countDown();
+            } else if (json.getString("type").equals("frame-ack")) {
+                scheduler.acknowledge(json.getInt("frame"));
+            } else if (json.getString("type").equals("frame-resync")) {
+                scheduler.resync();
+            } else if (json.getString("type").equals("anim-done")) {
+                Animation animation = animations.remove(json.getInt("id"));
+                if(animation != null) animation.done.countDown();
             } else {
                 dataset.put(json.getString("name"), json.getString("val"));
             }
         });
 
+        console = new ConsoleBuffer(sparkServer);
+        scheduler = new FrameScheduler(new FrameEncoder(), sparkServer, 40);
+        String width = dataset.get("window-width"), height = dataset.get("window-height");
+        if(width != null && height != null) scheduler.setViewport(Integer.parseInt(width), Integer.parseInt(height)); //it resized before there was a scheduler
+        init();
+    }
+
+    /**
+     * headless mode: no web server and no browser
+     */
+    private WebLatte(int width, int height) {
+        System.setProperty("java.awt.headless", "true");
+        scheduler = new FrameScheduler(new FrameEncoder(), null, 40);
+        rasterizer = new Rasterizer(width, height);
+        dataset.put("window-width", "" + width);
+        dataset.put("window-height", "" + height);
+        sizeLatch.countDown();
+        init();
+    }
+
+    private void init() {
         dataset.put("leap-x", "-1.0"); //default value
         dataset.put("leap-y", "-1.0"); //default value
 
-
-        try {
-            transformer = TransformerFactory.newInstance().newTransformer();
-            transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "yes");
-        } catch (TransformerConfigurationException e) {
-            e.printStackTrace();
-        }
+        widgets = new WidgetTree(sparkServer);
 
             clearPaint();
         }
 
+    /**
+     * a WebLatte that runs without a browser: nothing is sent anywhere, and the
+     * drawing is only seen through renderImage(), renderPixels() and writePNG().
+     * paint() doesn't wait, println() prints to System.out, and anything that
+     * needs a person at the browser (nextClick(), nextLine(), login()) throws
+     * an IllegalStateException.  many can run at once, e.g. to render lots of
+     * drawings in parallel.
+     * @param width the width of the window it pretends to have
+     * @param height the height of the window it pretends to have
+     * @return the headless WebLatte
+     */
+    public static WebLatte headless(int width, int height) {
+        return new WebLatte(width, height);
+    }
+
+    /**
+     * true if this WebLatte runs without a browser, see headless()
+     */
+    public boolean isHeadless() {
+        return sparkServer == null;
+    }
+
+    private void send(String type, String payload) {
+        if(sparkServer != null) sparkServer.sendMessage(type, payload);
+    }
+
+    private void requireBrowser() {
+        if(isHeadless()) throw new IllegalStateException("there is no browser in headless mode");
+    }
+
     public void setTitle(String title) {
-        sparkServer.sendMessage("titl", title);
+        send("titl", title);
     }
 
     public static void makeClickable(Element e, String name) {
@@ -97,9 +190,10 @@ public class WebLatte  {
      * @return the username from a successful user login
      */
     public String login() {
+        requireBrowser();
         loginLatch = new CountDownLatch(1);
         try{
-            sparkServer.sendMessage("logi", "");
+            send("logi", "");
             loginLatch.await();
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -161,13 +255,20 @@ public class WebLatte  {
      * r.setAttribute("name", "myrectangle");
      */
     public String nextClick() {
-        clickLatch = new CountDownLatch(1);
-        try {
-            clickLatch.await();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        requireBrowser();
+        while(true) {
+            clickLatch = new CountDownLatch(1);
+            clickValue = null;
+            clickPoint = null;
+            try {
+                clickLatch.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return null;
+            }
+            String name = clicked();
+            if(name != null) return name;
         }
-        return clickValue;
     }
 
     /**
@@ -176,14 +277,51 @@ public class WebLatte  {
      * @return the name of the button that was clicked
      */
     public String nextClick(long timeout) {
-        clickLatch = new CountDownLatch(1);
-        clickValue = null;
-        try {
-            clickLatch.await(timeout, TimeUnit.MILLISECONDS);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        requireBrowser();
+        long deadline = System.currentTimeMillis() + timeout;
+        while(true) {
+            clickLatch = new CountDownLatch(1);
+            clickValue = null;
+            clickPoint = null;
+            try {
+                long left = deadline - System.currentTimeMillis();
+                if(left <= 0 || !clickLatch.await(left, TimeUnit.MILLISECONDS)) return null;
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return null;
+            }
+            String name = clicked();
+            if(name != null) return name;
+        }
+    }
+
+    /**
+     * the name of what was clicked.  a canvas only sends where it was
+     * clicked: that is the topmost clickable shape there.
+     */
+    private String clicked() {
+        if(clickValue != null) return clickValue;
+        double[] p = clickPoint;
+        if(p == null) return null;
+        for(Element e : shapesAt(p[0], p[1])) {
+            if(isClickable(e)) return e.getAttribute("name");
+            NodeList inside = e.getElementsByTagName("*"); //like a noun's image, inside its group
+            for(int i = 0; i < inside.getLength(); i++) {
+                Element c = (Element) inside.item(i);
+                if(isClickable(c)) return c.getAttribute("name");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * whether "clickable" is one of the element's classes, like the browser sees it
+     */
+    private static boolean isClickable(Element e) {
+        for(String c : e.getAttribute("class").trim().split("\\s+")) {
+            if(c.equals("clickable")) return true;
         }
-        return clickValue;
+        return false;
     }
 
     /**
@@ -191,9 +329,10 @@ public class WebLatte  {
      * @return the user inputted string
      */
     public Line nextLine() {
+        requireBrowser();
         inputLatch = new CountDownLatch(1);
         try {
-            sparkServer.sendMessage("coin", "");
+            console.sendAfter("coin", ""); //after the question it answers
             inputLatch.await();
         } catch (InterruptedException e) {
             e.printStackTrace();
@@ -213,70 +352,578 @@ public class WebLatte  {
 
 
     /**
-     * print a line to the screen.  can include html tags
+     * print a line to the screen.  can include html tags.  lines are sent a
+     * few times a second, many at once, so printing a lot doesn't slow the
+     * program down; if it prints faster than they can be sent, the oldest
+     * lines not sent yet are left out.
      * @param s the string to print
      */
     public void println(String s) {
-        sparkServer.sendMessage("cout", s);
+        if(isHeadless()) System.out.println(s);
+        else console.add(s);
     }
 
     /**
-     * paint the drawing to the screen.  the program waits a default 25 milliseconds.
+     * paint the drawing to the screen.  the program waits until it is time for
+     * the next frame: 40 frames per second, unless changed with setFrameRate().
+     * if the browser can't keep up, frames are merged instead of piling up.
      */
     public void paint() {
-        paint(25);
+        submit();
+        if(!isHeadless()) scheduler.awaitNextFrame();
     }
 
     /**
      * paint the drawing to the screen.
+     * only the shapes that changed since the last paint are sent to the browser.
      * @param timeout the program waits for this number of milliseconds.
      */
     public void paint(long timeout) {
+        submit();
+        if(isHeadless()) return;
+        try {
+            Thread.sleep(timeout);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
 
-        for(Element e : draws) {
-            svgdoc.getDocumentElement().appendChild(e);
+    /**
+     * hand what changed to the scheduler, without waiting
+     */
+    private void submit() {
+        merge();
+        if(isHeadless()) {
+            scene.markClean();
+            return;
         }
+        replot();
+        scheduler.submit(scene);
+    }
 
+    /**
+     * what run() calls on every frame
+     */
+    public interface FrameCallback {
+        /**
+         * move everything forward by one step.  steps are always the same
+         * length, however fast or slow the frames are.
+         * @param dt the length of a step, in seconds
+         */
+        void update(double dt);
+
+        /**
+         * draw.  called once a frame, after the frame's updates.  there is no
+         * need to paint(): run() does it.
+         * @param alpha how far it is from the last update to the next, 0 to 1,
+         *              to draw moving things in between and keep them smooth
+         */
+        default void render(double alpha) {}
+    }
+
+    /**
+     * run a game loop, instead of while(true) { ... paint(); }: the program
+     * gets 60 updates a second however long its frames take, and render is
+     * called and the drawing painted once a frame.  if the updates can't keep
+     * up, frames are left out to catch up.  runs until stop().
+     */
+    public void run(FrameCallback callback) {
+        run(60, callback);
+    }
+
+    /**
+     * run a game loop, see run(FrameCallback)
+     * @param updatesPerSecond how many steps the simulation makes a second
+     */
+    public void run(double updatesPerSecond, FrameCallback callback) {
+        if(loop != null) throw new IllegalStateException("already running");
+        loop = new GameLoop(updatesPerSecond);
         try {
-            //draws:
-            StringWriter writer = new StringWriter();
-            transformer.transform(new DOMSource(svgdoc), new StreamResult(writer));
-            String output = writer.getBuffer().toString().replaceAll("\n|\r", "");
+            loop.run(callback, this::submit, scheduler::awaitNextFrame);
+        } finally {
+            stopped = loop;
+            loop = null;
+        }
+    }
+
+    /**
+     * stop the loop started by run(), after the update or render going on
+     */
+    public void stop() {
+        GameLoop running = loop;
+        if(running != null) running.stop();
+    }
+
+    /**
+     * how long frames of run() take to update, render and send, leaving out
+     * the wait for the next frame.  the median is getFrameTime(50), and
+     * getFrameTime(99) shows the slow frames that make it stutter.
+     * @param percentile 0 to 100
+     * @return milliseconds, over the last few seconds' frames
+     */
+    public double getFrameTime(double percentile) {
+        GameLoop l = loop != null ? loop : stopped;
+        return l == null ? 0 : l.frameTime(percentile);
+    }
+
+    /**
+     * how many frames run() left out because the updates fell behind
+     */
+    public long getSkippedFrames() {
+        GameLoop l = loop != null ? loop : stopped;
+        return l == null ? 0 : l.skipped();
+    }
+
+    /**
+     * animate a number of a drawn shape, like its position or its size,
+     * without painting over and over: the browser gets one message and works
+     * out every frame of the animation itself.  the element is given the end
+     * value right away, so the drawing on the server is where the animation
+     * will end up, and painting again doesn't interrupt it.  the drawing is
+     * sent like paint() does (without waiting), so the browser has the element
+     * as it is now, and anything else drawn since the last paint() shows too.
+     * @param e an element returned by one of the draw functions
+     * @param attribute the attribute to animate, like "cx" or "width"
+     * @param from the value it starts at
+     * @param to the value it ends at
+     * @param millis how long it takes, in milliseconds
+     * @param easing "linear", "ease-in", "ease-out" or "ease-in-out"
+     * @return the animation, to wait for it to finish
+     */
+    public Animation animate(Element e, String attribute, double from, double to, long millis, String easing) {
+        if(!EASINGS.contains(easing)) throw new IllegalArgumentException("unknown easing: " + easing);
+        merge();
+        int key = scene.keyForBrowser(e);
+        if(key < 0) throw new IllegalArgumentException("only drawn elements can be animated");
+        e.setAttributeNS(null, attribute, SvgWriter.format(to));
+        submit(); //the browser needs the element's markup, with the end value, to animate it
+        Animation animation = new Animation();
+        if(isHeadless()) {
+            animation.done.countDown(); //nobody to watch it, it is already at the end
+            return animation;
+        }
+        int id = animationCount.getAndIncrement();
+        animations.put(id, animation);
+        JSONObject payload = new JSONObject();
+        payload.put("id", id);
+        payload.put("key", key);
+        payload.put("path", scene.path(e)); //a noun's image is inside its group
+        payload.put("attr", attribute);
+        payload.put("from", from);
+        payload.put("to", to);
+        payload.put("ms", millis);
+        payload.put("easing", easing);
+        sparkServer.sendMessage("anim", payload);
+        return animation;
+    }
+
+    /**
+     * animate a number of a drawn shape at a steady speed, see
+     * animate(Element, String, double, double, long, String)
+     */
+    public Animation animate(Element e, String attribute, double from, double to, long millis) {
+        return animate(e, attribute, from, to, millis, "linear");
+    }
+
+    /**
+     * an animation running in the browser, see animate()
+     */
+    public class Animation {
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /**
+         * @return true once the browser has finished the animation
+         */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * wait until the browser has finished the animation
+         */
+        public void await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * shapes drawn with the draw functions that are completely outside the
+     * window are not sent to the browser (until they move into view or the
+     * window grows).  this is on by default; turn it off if something else
+     * moves the drawing around, like a transform on the whole svg.
+     * @param culling false to always send every shape
+     */
+    public void setCulling(boolean culling) {
+        if(!isHeadless()) scheduler.setCulling(culling);
+    }
+
+    /**
+     * always send this shape, even when it is outside the window
+     * @param e an element returned by one of the draw functions
+     * @param cullable false to always send it, true to let it be left out again
+     */
+    public void setCullable(Element e, boolean cullable) {
+        merge();
+        scene.setCullable(e, cullable);
+    }
+
+    /**
+     * the shapes under a point, the topmost first.  the first time you ask,
+     * a grid of everything drawn is built; after that it is kept up to date
+     * as you draw, change and remove shapes, so asking is quick even with
+     * lots of shapes.
+     * @return the elements returned by the draw functions (or added with drawSVGElement)
+     */
+    public List<Element> shapesAt(double x, double y) {
+        merge();
+        return scene.index().at(x, y);
+    }
+
+    /**
+     * the shapes touching a box, in the order they were drawn
+     */
+    public List<Element> shapesIn(double x, double y, double width, double height) {
+        merge();
+        return scene.index().in(new Rectangle2D.Double(x, y, width, height));
+    }
+
+    /**
+     * every pair of shapes that touch each other.  circles, rectangles and
+     * lines are checked exactly, text by a box around it.
+     * @return pairs of elements, the one drawn first first
+     */
+    public List<Element[]> collisions() {
+        merge();
+        return scene.index().collisions();
+    }
+
+    /**
+     * send frames to the browser from a separate thread.  paint() then only
+     * notes what changed and returns, so your program can work on the next
+     * frame while this one is sent.  if the sending falls behind, the frames
+     * in between are skipped and the browser gets the newest drawing.
+     * @param async true to send on a separate thread
+     */
+    public void setAsyncPaint(boolean async) {
+        if(!isHeadless()) scheduler.setAsync(async);
+    }
+
+    /**
+     * set how many frames per second paint() aims for
+     * @param fps frames per second, 40 by default
+     */
+    public void setFrameRate(double fps) {
+        scheduler.setFrameRate(fps);
+    }
+
+    /**
+     * how many frames per second the browser is really showing
+     * @return the frame rate over the last couple of seconds
+     */
+    public double getFrameRate() {
+        return scheduler.frameRate();
+    }
+
+    /**
+     * how many frames were merged into later ones because the browser fell behind
+     * @return the number of frames not shown
+     */
+    public long getDroppedFrames() {
+        return scheduler.droppedFrames();
+    }
 
-            sparkServer.sendMessage("svgt", output);
-        } catch (TransformerConfigurationException e) {
+    /**
+     * send the drawing in a compact binary format instead of svg text.
+     * much faster for drawings with many rectangles, circles, ellipses, lines
+     * and text; anything else is still sent as svg.
+     * @param binary true to turn the binary format on
+     */
+    public void setBinaryFrames(boolean binary) {
+        scheduler.setBinary(binary);
+    }
+
+    /**
+     * write everything sent to and from the browser to a file, with the time
+     * it happened, until stopRecording().  play it back with FrameReplayer, to
+     * see again what the program drew or to benchmark the drawing.
+     * @param file the file to write, it is replaced if it exists
+     */
+    public void startRecording(String file) {
+        requireBrowser();
+        try {
+            SparkServer.record(file);
+        } catch (IOException e) {
             e.printStackTrace();
-        } catch (TransformerException e) {
+        }
+    }
+
+    /**
+     * stop recording and close the file
+     */
+    public void stopRecording() {
+        try {
+            SparkServer.record(null);
+        } catch (IOException e) {
             e.printStackTrace();
         }
+    }
+
+    /**
+     * send the browser the common words of the drawing, so the frames after
+     * it compress better.  messages are compressed when the browser asks for
+     * it (they all do); this only helps while the server keeps what it sent
+     * before to compress the next message, which is how browsers ask for it.
+     * @return true if the words were sent
+     */
+    public boolean primeCompression() {
+        return sparkServer != null && sparkServer.primeCompression();
+    }
+
+    /**
+     * @return true if messages to the browser are compressed
+     */
+    public boolean isCompressed() {
+        return sparkServer != null && sparkServer.isCompressed();
+    }
+
+    /**
+     * choose how the browser shows the drawing:
+     *   "svg"     every shape is an svg element (the default)
+     *   "canvas"  everything is painted onto one canvas
+     *   "webgl"   rectangles, circles, ellipses and lines are drawn by the
+     *             graphics card, with text and images on a canvas on top.
+     *             falls back to "canvas" if the browser has no webgl2.
+     * canvas and webgl are much faster with thousands of shapes, and turn on
+     * binary frames.  they draw the basic svg shapes; fancy svg needs "svg".
+     * clickable shapes work with all three: a canvas sends where it was
+     * clicked, and the shape there is found with shapesAt().
+     * @param renderer "svg", "canvas" or "webgl"
+     */
+    public void setRenderer(String renderer) {
+        if(!renderer.equals("svg") && !renderer.equals("canvas") && !renderer.equals("webgl")) {
+            throw new IllegalArgumentException("unknown renderer: " + renderer);
+        }
+        send("rndr", renderer);
+        if(!renderer.equals("svg")) setBinaryFrames(true);
+    }
+
+    /**
+     * paint the drawing into an image on the server, as it is right now (it
+     * doesn't need to be painted first).  works with or without a browser.
+     * @return an image the size of the window, transparent where nothing is drawn
+     */
+    public BufferedImage renderImage() {
+        merge();
+        Rasterizer r = rasterizer != null ? rasterizer : new Rasterizer(getWidth(), getHeight()); //the browser's window can change size
+        return r.render(scene, parallelRendering);
+    }
+
+    /**
+     * paint the drawing into an array of pixels, see renderImage()
+     * @return the pixels row by row from the top left, each one 0xaarrggbb
+     */
+    public int[] renderPixels() {
+        BufferedImage image = renderImage();
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * paint the drawing into a png file, see renderImage()
+     * @param file the name of the file to write
+     */
+    public void writePNG(String file) {
         try {
-            Thread.sleep(timeout);
-        } catch (InterruptedException e) {
+            ImageIO.write(renderImage(), "png", new File(file));
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * paint images on several threads at once (the default), or on just one.
+     * turn it off when you already render many drawings in parallel.
+     * @param parallel true to use several threads
+     */
+    public void setParallelRendering(boolean parallel) {
+        parallelRendering = parallel;
+    }
+
     /**
      * clear any drawings in the window
      */
     public void clearPaint() {
-        svgdoc = impl.createDocument(svgNS, "svg", null);
-        svgdoc.getDocumentElement().setAttribute("id", "user-svg");
-        draws.clear();
+        merge();
+        if(pool != null && svgdoc != null) {
+            for(Element group : scene.groups()) pool.recycle(group);
+        } else {
+            svgdoc = impl.createDocument(svgNS, "svg", null);
+            svgdoc.getDocumentElement().setAttribute("id", "user-svg");
+        }
+        scene.reset(svgdoc);
+        windowPlots.clear();
+    }
+
+    /**
+     * draw into a layer from now on.  layers are stacked in the order they are
+     * first drawn into, and can be cleared one at a time with clearLayer().
+     * draw a background that doesn't change into a layer of its own once, and
+     * clear and draw just the moving things every frame: only they are sent.
+     * until you call this, everything goes into the layer called "default".
+     * @param name the layer's name
+     */
+    public void setLayer(String name) {
+        scene.setLayer(name);
+    }
+
+    /**
+     * @return the name of the layer being drawn into
+     */
+    public String getLayer() {
+        return scene.getLayer();
+    }
+
+    /**
+     * clear the drawings in one layer, leaving the other layers alone
+     * @param name the layer's name
+     */
+    public void clearLayer(String name) {
+        merge();
+        Element group = scene.group(name);
+        if(pool != null && group != null) pool.recycle(group);
+        scene.clearLayer(name);
+        windowPlots.removeIf(plot -> plot.layer.equals(name));
+    }
+
+    /**
+     * reuse the drawing's elements after clearPaint() or clearLayer() instead
+     * of making new ones, which saves a lot of garbage (and pauses) when
+     * everything is cleared and drawn again every frame.
+     * careful: an element returned by a draw function is only yours until its
+     * layer is cleared; after that it may be handed out again as another shape.
+     * @param pooling true to reuse elements
+     */
+    public void setPooling(boolean pooling) {
+        pool = pooling ? new ElementPool() : null;
+    }
+
+    /**
+     * a new element, or one from the pool.  until it is added to the drawing
+     * nothing needs to hear about changes to it, so mutation events are off
+     * until built() is called, which must be in a finally block: if building
+     * it throws, changes to every other shape would go unseen.
+     * other threads use a document of their own instead, see drawBuffer().
+     */
+    private Element element(String tag) {
+        if(drawBuffer() != null) return scratch.get().createElementNS(svgNS, tag);
+        ElementPool.events(svgdoc, false);
+        return pool != null ? pool.get(svgdoc, svgNS, tag) : svgdoc.createElementNS(svgNS, tag);
+    }
+
+    /**
+     * put a drawn element into the drawing
+     */
+    private void add(Element e, Shape shape) {
+        DrawBuffer buffer = drawBuffer();
+        if(buffer != null) {
+            buffer.add(e, shape, scene.getLayer());
+            return;
+        }
+        scene.add(e, shape);
+    }
+
+    /**
+     * turn mutation events back on after element(), so changes made to the
+     * drawing from now on are seen
+     */
+    private void built() {
+        if(drawBuffer.get() == null) ElementPool.events(svgdoc, true);
+    }
+
+    /**
+     * where the current thread's shapes go until the drawing thread adds
+     * them to the drawing, or null for the drawing thread itself (the one
+     * that made this WebLatte), which adds them right away
+     */
+    private DrawBuffer drawBuffer() {
+        DrawBuffer buffer = drawBuffer.get();
+        if(buffer != null || Thread.currentThread() == drawingThread) return buffer;
+        buffer = new DrawBuffer(Thread.currentThread().getId(), Thread.currentThread());
+        synchronized(drawBuffers) {
+            drawBuffers.add(buffer);
+            drawBuffers.sort(Comparator.comparingLong(b -> b.order));
+        }
+        drawBuffer.set(buffer);
+        return buffer;
+    }
+
+    /**
+     * add what other threads have drawn to the drawing: each thread's shapes
+     * in the order it drew them, the threads in the order they were started
+     */
+    private void merge() {
+        synchronized(drawBuffers) {
+            if(drawBuffers.isEmpty()) return;
+            boolean events = ElementPool.events(svgdoc, false); //the scene sees them added, no need for events
+            for(DrawBuffer buffer : drawBuffers) buffer.drainTo(scene, svgdoc);
+            ElementPool.events(svgdoc, events);
+            drawBuffers.removeIf(buffer -> !buffer.thread.isAlive() && buffer.isEmpty());
+        }
+    }
+
+    /**
+     * run some drawing in parallel, split into parts: part(0), part(1)...
+     * part(parts - 1) each run on one of the cpus.  whatever a part draws is
+     * added to the drawing in order of the parts, so the result is the same
+     * as drawing them one after the other.  work out the simulation inside
+     * the parts too, and it is split over the cpus as well.
+     * @param parts how many parts to split the work into
+     * @param part draws one part, given its number
+     */
+    public void drawInParallel(int parts, IntConsumer part) {
+        DrawBuffer[] buffers = new DrawBuffer[parts];
+        IntStream.range(0, parts).parallel().forEach(i -> {
+            DrawBuffer outer = drawBuffer.get();
+            drawBuffer.set(buffers[i] = new DrawBuffer(i, null));
+            try {
+                part.accept(i);
+            } finally {
+                if(outer != null) drawBuffer.set(outer);
+                else drawBuffer.remove();
+            }
+        });
+        merge();
+        boolean events = ElementPool.events(svgdoc, false);
+        for(DrawBuffer buffer : buffers) buffer.drainTo(scene, svgdoc);
+        ElementPool.events(svgdoc, events);
+    }
+
+    /**
+     * take one shape out of the drawing, leaving everything else in place.
+     * will not be visible until you run the paint() function
+     * @param e an element returned by one of the draw functions
+     */
+    public void remove(Element e) {
+        merge();
+        scene.remove(e);
+        windowPlots.removeIf(plot -> plot.element == e);
     }
 
     /**
      * clear any printed text in the window
      */
     public void clearConsole() {
-        sparkServer.sendMessage("cocl", "");
+        if(console != null) console.clear();
     }
 
     /**
      * clear any input elements in the window
      */
     public void clearElements() {
-        sparkServer.sendMessage("cldi", "");
+        widgets.clear();
     }
 
     /**
@@ -295,25 +942,11 @@ public class WebLatte  {
      * @param name the name of the text input
      * @param x the x coordinate of the upper left corner
      * @param y the y coordinate of the upper left corner
+     * @return the input, to change it later
      */
-    public void addInput(String name, int x, int y) {
-        try {
-            Document htmldoc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-            Element input = htmldoc.createElement("input");
-            input.setAttribute("type", "text");
-            input.setAttribute("name", name);
-            input.setAttribute("style", "position:fixed; left:" + x + "px; top:" + y +"px;");
-            input.setAttribute("placeholder", name);
-            htmldoc.appendChild(input);
-            StringWriter writer = new StringWriter();
-            transformer.transform(new DOMSource(htmldoc), new StreamResult(writer));
-            sparkServer.sendMessage("html", writer.getBuffer().toString().replaceAll("\n|\r", ""));
-            dataset.put(name, "");
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
-        } catch (TransformerException e) {
-            e.printStackTrace();
-        }
+    public Widget addInput(String name, int x, int y) {
+        dataset.put(name, "");
+        return new Widget("input", name, x, y);
     }
 
     /*
@@ -322,7 +955,7 @@ public class WebLatte  {
     * can be cleared with clearElements()
      */
     public void addHTML(String html) {
-        sparkServer.sendMessage("html", html);
+        send("html", html);
     }
 
     /**
@@ -330,25 +963,122 @@ public class WebLatte  {
      * @param name the name of the button
      * @param x the x coordinate of the upper left corner of the button
      * @param y the y coordinate of the upper left corner of the button
+     * @return the button, to change it later
      */
-    public void addButton(String name, int x, int y) {
-        try {
-            Document htmldoc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
-            Element button = htmldoc.createElement("button");
-            button.setAttribute("type", "button");
-            button.setAttribute("class", "clickable");
-            button.setAttribute("name", name);
-            button.setAttribute("style", "position:fixed; left:" + x + "px; top:" + y + "px;");
-            button.setTextContent(name);
-            htmldoc.appendChild(button);
-            StringWriter writer = new StringWriter();
-            transformer.transform(new DOMSource(htmldoc), new StreamResult(writer));
-            sparkServer.sendMessage("html", writer.getBuffer().toString().replaceAll("\n|\r", ""));
-        } catch (ParserConfigurationException e) {
-            e.printStackTrace();
-        } catch (TransformerException e) {
-            e.printStackTrace();
+    public Widget addButton(String name, int x, int y) {
+        return new Widget("button", name, x, y);
+    }
+
+    /**
+     * an input or a button in the window.  changing it only sends what
+     * changed, a few times a second at most, so it can be changed as often as
+     * you like.
+     */
+    public class Widget {
+        private final int id;
+        private final String kind, name;
+        private String label;
+        private int x, y;
+        private boolean enabled = true;
+
+        Widget(String kind, String name, int x, int y) {
+            this.id = widgets.nextId();
+            this.kind = kind;
+            this.name = name;
+            this.label = name;
+            this.x = x;
+            this.y = y;
+            JSONObject widget = new JSONObject();
+            widget.put("id", id);
+            widget.put("kind", kind);
+            widget.put("name", name);
+            widget.put("label", label);
+            widget.put("x", x);
+            widget.put("y", y);
+            widget.put("enabled", enabled);
+            widgets.add(widget);
+        }
+
+        /**
+         * the name it was added with: what nextClick() returns for a button,
+         * and what getValue() takes for an input
+         */
+        public String getName() {
+            return name;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        /**
+         * the text on a button, or shown in an empty input
+         */
+        public void setLabel(String label) {
+            if(label.equals(this.label)) return;
+            this.label = label;
+            widgets.set(id, "label", label);
+        }
+
+        public int getX() {
+            return x;
         }
+
+        public int getY() {
+            return y;
+        }
+
+        /**
+         * move it
+         * @param x the x coordinate of the upper left corner
+         * @param y the y coordinate of the upper left corner
+         */
+        public void setPosition(int x, int y) {
+            if(x != this.x) widgets.set(id, "x", x);
+            if(y != this.y) widgets.set(id, "y", y);
+            this.x = x;
+            this.y = y;
+        }
+
+        /**
+         * what is typed into an input
+         */
+        public String getValue() {
+            return dataset.get(name);
+        }
+
+        /**
+         * change what is typed into an input
+         */
+        public void setValue(String value) {
+            if(!kind.equals("input")) throw new IllegalStateException("a button has no value");
+            if(value.equals(dataset.put(name, value))) return;
+            widgets.set(id, "value", value);
+        }
+
+        public boolean isEnabled() {
+            return enabled;
+        }
+
+        /**
+         * a disabled button can't be clicked, and a disabled input can't be typed in
+         */
+        public void setEnabled(boolean enabled) {
+            if(enabled == this.enabled) return;
+            this.enabled = enabled;
+            widgets.set(id, "enabled", enabled);
+        }
+
+        /**
+         * take it out of the window
+         */
+        public void remove() {
+            widgets.set(id, "removed", true);
+        }
+    }
+
+    private static String rotate(double rot, double cx, double cy) {
+        return "rotate(" + SvgWriter.format(rot) + " " + SvgWriter.format(cx) + " " + SvgWriter.format(cy) + ")";
     }
 
     /**
@@ -364,14 +1094,18 @@ public class WebLatte  {
      * @return the rectangle element, which you can modify before you paint.
      */
     public Element drawRectangle(double x, double y, double w, double h, double rot, ColorLatte color) {
-        Element rectangle = svgdoc.createElementNS(svgNS, "rect");
-        rectangle.setAttributeNS(null, "x", Double.toString(x));
-        rectangle.setAttributeNS(null, "y", Double.toString(y));
-        rectangle.setAttributeNS(null, "width", Double.toString(w));
-        rectangle.setAttributeNS(null, "height", Double.toString(h));
-        rectangle.setAttributeNS(null, "fill", color.toString());
-        if(rot!=0) rectangle.setAttributeNS(null, "transform", "rotate(" + rot + " " + (x+w/2) + " " + (y+h/2) + ")");
-        draws.add(rectangle);
+        Element rectangle = element("rect");
+        try {
+            rectangle.setAttributeNS(null, "x", SvgWriter.format(x));
+            rectangle.setAttributeNS(null, "y", SvgWriter.format(y));
+            rectangle.setAttributeNS(null, "width", SvgWriter.format(w));
+            rectangle.setAttributeNS(null, "height", SvgWriter.format(h));
+            rectangle.setAttributeNS(null, "fill", color.toString());
+            if(rot!=0) rectangle.setAttributeNS(null, "transform", rotate(rot, x+w/2, y+h/2));
+            add(rectangle, Shape.rect(x, y, w, h, rot, color));
+        } finally {
+            built();
+        }
         return rectangle;
     }
 
@@ -386,12 +1120,16 @@ public class WebLatte  {
      * @return the circle element, which you can modify before you paint.
      */
     public Element drawCircle(double cx, double cy, double r, ColorLatte color) {
-        Element circle = svgdoc.createElementNS(svgNS, "circle");
-        circle.setAttributeNS(null, "cx", Double.toString(cx));
-        circle.setAttributeNS(null, "cy", Double.toString(cy));
-        circle.setAttributeNS(null, "r", Double.toString(r));
-        circle.setAttributeNS(null, "fill", color.toString());
-        draws.add(circle);
+        Element circle = element("circle");
+        try {
+            circle.setAttributeNS(null, "cx", SvgWriter.format(cx));
+            circle.setAttributeNS(null, "cy", SvgWriter.format(cy));
+            circle.setAttributeNS(null, "r", SvgWriter.format(r));
+            circle.setAttributeNS(null, "fill", color.toString());
+            add(circle, Shape.circle(cx, cy, r, color));
+        } finally {
+            built();
+        }
         return circle;
     }
 
@@ -408,14 +1146,18 @@ public class WebLatte  {
      * @return the ellipse element, which you can modify before you paint.
      */
     public Element drawEllipse(double cx, double cy, double rx, double ry, double rot, ColorLatte color) {
-        Element ellipse = svgdoc.createElementNS(svgNS, "ellipse");
-        ellipse.setAttributeNS(null, "cx", Double.toString(cx));
-        ellipse.setAttributeNS(null, "cy", Double.toString(cy));
-        ellipse.setAttributeNS(null, "rx", Double.toString(rx));
-        ellipse.setAttributeNS(null, "ry", Double.toString(ry));
-        if(rot!=0) ellipse.setAttributeNS(null, "transform", "rotate(" + rot + " " + cx + " " + cy + ")");
-        ellipse.setAttributeNS(null, "fill", color.toString());
-        draws.add(ellipse);
+        Element ellipse = element("ellipse");
+        try {
+            ellipse.setAttributeNS(null, "cx", SvgWriter.format(cx));
+            ellipse.setAttributeNS(null, "cy", SvgWriter.format(cy));
+            ellipse.setAttributeNS(null, "rx", SvgWriter.format(rx));
+            ellipse.setAttributeNS(null, "ry", SvgWriter.format(ry));
+            if(rot!=0) ellipse.setAttributeNS(null, "transform", rotate(rot, cx, cy));
+            ellipse.setAttributeNS(null, "fill", color.toString());
+            add(ellipse, Shape.ellipse(cx, cy, rx, ry, rot, color));
+        } finally {
+            built();
+        }
         return ellipse;
     }
 
@@ -432,17 +1174,165 @@ public class WebLatte  {
      * @return the line element, which you can modify before you paint.
      */
     public Element drawLine(double x1, double y1, double x2, double y2, double thick, ColorLatte color) {
-        Element line = svgdoc.createElementNS(svgNS, "line");
-        line.setAttributeNS(null, "x1", Double.toString(x1));
-        line.setAttributeNS(null, "y1", Double.toString(y1));
-        line.setAttributeNS(null, "x2", Double.toString(x2));
-        line.setAttributeNS(null, "y2", Double.toString(y2));
-        line.setAttributeNS(null, "stroke", color.toString());
-        line.setAttributeNS(null, "stroke-width", Double.toString(thick));
-        draws.add(line);
+        Element line = element("line");
+        try {
+            line.setAttributeNS(null, "x1", SvgWriter.format(x1));
+            line.setAttributeNS(null, "y1", SvgWriter.format(y1));
+            line.setAttributeNS(null, "x2", SvgWriter.format(x2));
+            line.setAttributeNS(null, "y2", SvgWriter.format(y2));
+            line.setAttributeNS(null, "stroke", color.toString());
+            line.setAttributeNS(null, "stroke-width", SvgWriter.format(thick));
+            add(line, Shape.line(x1, y1, x2, y2, thick, color));
+        } finally {
+            built();
+        }
+        return line;
+    }
+
+    /**
+     * Draw many rectangles at once, straight from arrays: much faster than
+     * calling drawRectangle for each one.  the arrays are copied, so you can
+     * change them as soon as this returns.
+     * will not be visible until you run the paint() function
+     * can be cleared with the clearPaint() function
+     * @param x the x coordinates of the upper left corners
+     * @param y the y coordinates of the upper left corners
+     * @param w the widths
+     * @param h the heights
+     * @param rgb the colors as 0xrrggbb, one per rectangle (or just one for all of them)
+     * @return a group holding the rectangles, which you can remove() or change like
+     * any element (a changed group is sent as paths, which is slower)
+     */
+    public Element drawRectangles(double[] x, double[] y, double[] w, double[] h, int[] rgb) {
+        return drawBatch(Shape.rects(x, y, w, h, rgb));
+    }
+
+    /**
+     * Draw many circles at once, straight from arrays: much faster than
+     * calling drawCircle for each one.  the arrays are copied.
+     * will not be visible until you run the paint() function
+     * can be cleared with the clearPaint() function
+     * @param cx the x coordinates of the centers
+     * @param cy the y coordinates of the centers
+     * @param r the radii
+     * @param rgb the colors as 0xrrggbb, one per circle (or just one for all of them)
+     * @return a group holding the circles, which you can remove() or change like
+     * any element (a changed group is sent as paths, which is slower)
+     */
+    public Element drawCircles(double[] cx, double[] cy, double[] r, int[] rgb) {
+        return drawBatch(Shape.circles(cx, cy, r, rgb));
+    }
+
+    /**
+     * Draw many lines at once, straight from arrays: much faster than
+     * calling drawLine for each one.  the arrays are copied.
+     * will not be visible until you run the paint() function
+     * can be cleared with the clearPaint() function
+     * @param x1 the x coordinates of the starting points
+     * @param y1 the y coordinates of the starting points
+     * @param x2 the x coordinates of the ending points
+     * @param y2 the y coordinates of the ending points
+     * @param thick the thickness of all the lines
+     * @param rgb the colors as 0xrrggbb, one per line (or just one for all of them)
+     * @return a group holding the lines, which you can remove() or change like
+     * any element (a changed group is sent as paths, which is slower)
+     */
+    public Element drawLines(double[] x1, double[] y1, double[] x2, double[] y2, double thick, int[] rgb) {
+        return drawBatch(Shape.lines(x1, y1, x2, y2, thick, rgb));
+    }
+
+    /**
+     * Draw many points at once, straight from arrays.  each point is a small
+     * square centered on its coordinates.  the arrays are copied.
+     * will not be visible until you run the paint() function
+     * can be cleared with the clearPaint() function
+     * @param x the x coordinates of the points
+     * @param y the y coordinates of the points
+     * @param size the width of each point
+     * @param rgb the colors as 0xrrggbb, one per point (or just one for all of them)
+     * @return a group holding the points, which you can remove() or change like
+     * any element (a changed group is sent as paths, which is slower)
+     */
+    public Element drawPoints(double[] x, double[] y, double size, int[] rgb) {
+        return drawBatch(Shape.points(x, y, size, rgb));
+    }
+
+    /**
+     * Plot a data series as one line, stretched over a box: the smallest x on
+     * the left, the smallest y at the bottom.  series of any length are fine:
+     * only about two points per pixel of the width are drawn, chosen so the
+     * peaks and dips still show.
+     * will not be visible until you run the paint() function
+     * can be cleared with the clearPaint() function
+     * @param xs the x values, in increasing order
+     * @param ys the y values, one per x
+     * @param x the x coordinate of the upper left corner of the box
+     * @param y the y coordinate of the upper left corner of the box
+     * @param w the width of the box
+     * @param h the height of the box
+     * @param thick the thickness of the line
+     * @param color the color of the line
+     * @return the polyline element
+     */
+    public Element plot(double[] xs, double[] ys, double x, double y, double w, double h, double thick, ColorLatte color) {
+        return drawPlot(new Plot(xs, ys, false), x, y, w, h, thick, color);
+    }
+
+    /**
+     * Plot a data series as one line over the whole window, see
+     * plot(double[], double[], double, double, double, double, double, ColorLatte).
+     * when the window changes size, the plot is fitted to it again at the
+     * next paint(), so the arrays are copied.
+     * @param xs the x values, in increasing order
+     * @param ys the y values, one per x
+     * @param thick the thickness of the line
+     * @param color the color of the line
+     * @return the polyline element
+     */
+    public Element plot(double[] xs, double[] ys, double thick, ColorLatte color) {
+        Plot plot = new Plot(xs, ys, true);
+        drawPlot(plot, 0, 0, getWidth(), getHeight(), thick, color);
+        windowPlots.add(plot);
+        return plot.element;
+    }
+
+    private Element drawPlot(Plot plot, double x, double y, double w, double h, double thick, ColorLatte color) {
+        Element line = element("polyline");
+        try {
+            line.setAttributeNS(null, "fill", "none");
+            line.setAttributeNS(null, "stroke", color.toString());
+            line.setAttributeNS(null, "stroke-width", SvgWriter.format(thick));
+            plot.layout(line, x, y, w, h);
+            plot.element = line;
+            plot.layer = getLayer();
+            add(line, null);
+        } finally {
+            built();
+        }
         return line;
     }
 
+    /**
+     * fit the plots over the whole window to it again, if it changed size
+     */
+    private void replot() {
+        if(windowPlots.isEmpty()) return;
+        int w = getWidth(), h = getHeight();
+        for(Plot plot : windowPlots) plot.layout(plot.element, 0, 0, w, h);
+    }
+
+    //a batch is a single empty group in the document; its shapes only exist as numbers
+    //until the group is changed, see SvgWriter.expand
+    private Element drawBatch(Shape batch) {
+        Element group = element("g");
+        try {
+            add(group, batch);
+        } finally {
+            built();
+        }
+        return group;
+    }
+
 
     /**
      * Draw some text into the window
@@ -458,14 +1348,20 @@ public class WebLatte  {
      */
     public Element drawText(String s, double x, double y, int size, double rot, ColorLatte color)
     {
-        Element text = svgdoc.createElementNS(svgNS, "text");
-        text.setAttributeNS(null, "x", Double.toString(x));
-        text.setAttributeNS(null, "y", Double.toString(y));
-        text.setAttributeNS(null, "font-size", Integer.toString(size));
-        text.setAttributeNS(null, "style", "fill: " +color.toString() +";");
-        if(rot!=0) text.setAttributeNS(null, "transform", "rotate(" + rot + " " + x + " " + y + ")");
-        text.setTextContent(s);
-        draws.add(text);
+        Element text = element("text");
+        try {
+            text.setAttributeNS(null, "x", SvgWriter.format(x));
+            text.setAttributeNS(null, "y", SvgWriter.format(y));
+            text.setAttributeNS(null, "font-size", Integer.toString(size));
+            text.setAttributeNS(null, "style", "fill: " +color.toString() +";");
+            if(rot!=0) text.setAttributeNS(null, "transform", rotate(rot, x, y));
+            Node content = text.getFirstChild();
+            if(content instanceof Text) ((Text) content).setData(s); //a pooled text keeps its text node
+            else text.setTextContent(s);
+            add(text, Shape.text(s, x, y, size, rot, color));
+        } finally {
+            built();
+        }
         return text;
     }
 
@@ -480,17 +1376,58 @@ public class WebLatte  {
      * @param h the height of the image
      * @param rot the rotation of the image about the center
      * @return the image element, which you can modify before you paint.
+     * (a noun from the atlas is an svg element, with the same x, y, width and
+     * height.)  the rotation is on a group around it.
      */
     public Element drawNoun(String name, double x, double y, double w, double h, double rot) {
-        return drawImage("resources/nouns/" + name + ".png", x,y,w,h,rot);
-        //TODO: catch if this noun doesn't exist
+        //small nouns come out of the atlas, so the browser loads them all at once
+        NounAtlas atlas = NounAtlas.get();
+        int[] cell = atlas == null || Math.max(w, h) > NounAtlas.CELL ? null : atlas.cell(name);
+        if(cell == null && !NounAtlas.exists(name)) throw new IllegalArgumentException("there is no noun called " + name);
+
+        Element group = element("g");
+        try {
+            //the rotation is on the group, so changing the image's x and y keeps it
+            if(rot!=0) group.setAttributeNS(null, "transform", rotate(rot, x + w / 2, y + h / 2));
+            if(cell == null) {
+                //the noun's own file, the same way drawImage draws it
+                String file = "resources/nouns/" + name + ".png";
+                String href = isHeadless() ? file : ImageCache.href(file, w, h);
+                Element image = element("image");
+                image.setAttributeNS(null, "x", SvgWriter.format(x));
+                image.setAttributeNS(null, "y", SvgWriter.format(y));
+                image.setAttributeNS(null, "width", SvgWriter.format(w));
+                image.setAttributeNS(null, "height", SvgWriter.format(h));
+                image.setAttributeNS(null, "xlink:href", href);
+                group.appendChild(image);
+                add(group, Shape.image(href, x, y, w, h, rot));
+                return image;
+            }
+            Element svg = element("svg");
+            svg.setAttributeNS(null, "x", SvgWriter.format(x));
+            svg.setAttributeNS(null, "y", SvgWriter.format(y));
+            svg.setAttributeNS(null, "width", SvgWriter.format(w));
+            svg.setAttributeNS(null, "height", SvgWriter.format(h));
+            svg.setAttributeNS(null, "viewBox", cell[0] + " " + cell[1] + " " + cell[2] + " " + cell[2]);
+            Element image = element("image");
+            image.setAttributeNS(null, "width", "" + atlas.width());
+            image.setAttributeNS(null, "height", "" + atlas.height());
+            image.setAttributeNS(null, "xlink:href", atlas.href);
+            svg.appendChild(image);
+            group.appendChild(svg);
+            add(group, Shape.sprite(atlas.href, x, y, w, h, rot, cell, atlas.width(), atlas.height()));
+            return svg; //it has the x, y, width and height an image would
+        } finally {
+            built();
+        }
     }
 
     /**
      * Draw an image from a local file
      * will not be visible until you run the paint() function
      * can be cleared with the clearPaint() function
-     * @param file the name of the noun
+     * big images are sent to the browser scaled down to about the size they are drawn
+     * @param file the name of the file, relative to the working directory
      * @param x the x coordinate of the upper left corner
      * @param y the y coordinate of the upper left corner
      * @param w the width of the image
@@ -499,14 +1436,20 @@ public class WebLatte  {
      * @return the image element, which you can modify before you paint.
      */
     public Element drawImage(String file, double x, double y, double w, double h, double rot) {
-        Element image = svgdoc.createElementNS(svgNS, "image");
-        image.setAttributeNS(null, "x", Double.toString(x));
-        image.setAttributeNS(null, "y", Double.toString(y));
-        image.setAttributeNS(null, "width", Double.toString(w));
-        image.setAttributeNS(null, "height", Double.toString(h));
-        image.setAttributeNS(null, "xlink:href", file);
-        if(rot!=0) image.setAttributeNS(null, "transform", "rotate(" + rot + " " + (x + w / 2) + " " + (y + h / 2) + ")");
-        draws.add(image);
+        Element image = element("image");
+        try {
+            image.setAttributeNS(null, "x", SvgWriter.format(x));
+            image.setAttributeNS(null, "y", SvgWriter.format(y));
+            image.setAttributeNS(null, "width", SvgWriter.format(w));
+            image.setAttributeNS(null, "height", SvgWriter.format(h));
+            //the browser gets a copy about the size it is drawn, not the whole file
+            String href = isHeadless() ? file : ImageCache.href(file, w, h);
+            image.setAttributeNS(null, "xlink:href", href);
+            if(rot!=0) image.setAttributeNS(null, "transform", rotate(rot, x + w / 2, y + h / 2));
+            add(image, Shape.image(href, x, y, w, h, rot));
+        } finally {
+            built();
+        }
         return image;
     }
 
@@ -519,11 +1462,12 @@ public class WebLatte  {
      */
     public Element drawSVGElement(String svg) {
         try {
-            Element node =  DocumentBuilderFactory
-                    .newInstance()
-                    .newDocumentBuilder()
-                    .parse(new ByteArrayInputStream(svg.getBytes()))
-                    .getDocumentElement();
+            DocumentBuilder builder = documentBuilder.get();
+            if(builder == null) {
+                builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+                documentBuilder.set(builder);
+            }
+            Element node = builder.parse(new ByteArrayInputStream(svg.getBytes())).getDocumentElement();
             return drawSVGElement(node);
         } catch (SAXException e) {
             e.printStackTrace();
@@ -543,8 +1487,8 @@ public class WebLatte  {
      * @return the svg element, which you can modify before you paint.
      */
     public Element drawSVGElement(Element node) {
-        node = (Element) svgdoc.importNode(node, true);
-        draws.add(node);
+        node = (Element) (drawBuffer() != null ? scratch.get() : svgdoc).importNode(node, true);
+        add(node, null);
 
         return node;
     }
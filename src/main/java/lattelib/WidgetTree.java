@@ -0,0 +1,104 @@
+package lattelib;
+
+import org.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The controls added with addInput and addButton, as the browser has them.
+ *
+ * Each control has an id.  The browser makes it from a "wadd" message with
+ * all its properties; after that only the properties that change are sent,
+ * in one "wupd" message every FLUSH_MILLIS with the newest value of each
+ * property of each control that changed, so a program updating lots of
+ * controls many times a second sends a few small messages.
+ */
+class WidgetTree {
+    static final long FLUSH_MILLIS = 50;
+
+    private final SparkServer server; //null in headless mode
+    private final Object sending = new Object(); //keeps the adds, updates and clears in order
+    private final Map<Integer, JSONObject> pending = new LinkedHashMap<Integer, JSONObject>(); //changed properties, by id
+    private Thread flusher;
+    private int nextId;
+
+    WidgetTree(SparkServer server) {
+        this.server = server;
+    }
+
+    synchronized int nextId() {
+        return nextId++;
+    }
+
+    /**
+     * make a control in the browser, after the changes so far
+     * @param widget all its properties, with its id
+     */
+    void add(JSONObject widget) {
+        if(server == null) return;
+        synchronized (sending) {
+            flush();
+            server.sendMessage("wadd", widget);
+        }
+    }
+
+    /**
+     * change a property of a control, soon
+     */
+    synchronized void set(int id, String property, Object value) {
+        if(server == null) return;
+        JSONObject changes = pending.get(id);
+        if(changes == null) pending.put(id, changes = new JSONObject());
+        changes.put(property, value);
+        if(flusher == null) {
+            flusher = new Thread(this::flushLoop, "widget-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * take every control (and everything added with addHTML) off the page
+     */
+    void clear() {
+        if(server == null) return;
+        synchronized (sending) {
+            synchronized (this) {
+                pending.clear();
+            }
+            server.sendMessage("cldi", "");
+        }
+    }
+
+    /**
+     * send every change so far in one message
+     */
+    void flush() {
+        synchronized (sending) {
+            JSONObject changes = new JSONObject();
+            synchronized (this) {
+                if(pending.isEmpty()) return;
+                for(Map.Entry<Integer, JSONObject> e : pending.entrySet()) changes.put("" + e.getKey(), e.getValue());
+                pending.clear();
+            }
+            server.sendMessage("wupd", changes);
+        }
+    }
+
+    private void flushLoop() {
+        while(true) {
+            try {
+                synchronized (this) {
+                    while(pending.isEmpty()) wait();
+                }
+                flush();
+                Thread.sleep(FLUSH_MILLIS); //whatever changes meanwhile goes out together
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,836 @@
+//the drawing: every shape the server sent, by key, kept in key order (which is
+//the order they were drawn in).  patches (see FrameEncoder.java) update it, and
+//a view shows it: svg nodes (the default), a 2d canvas, or webgl.
+//
+//an item is either {shape: {kind, v, color, text}} from a binary frame, or
+//{markup: "<rect .../>"} for anything else.
+
+var svgNS = "http://www.w3.org/2000/svg";
+var xlinkNS = "http://www.w3.org/1999/xlink";
+
+var drawing = {keys: [], items: {}, frame: -1, resync: false};
+var view = null;
+
+//index of the first key that is not smaller than this one
+function drawingindex(key) {
+    var keys = drawing.keys, lo = 0, hi = keys.length;
+    while (lo < hi) {
+        var mid = (lo + hi) >> 1;
+        if (keys[mid] < key) lo = mid + 1;
+        else hi = mid;
+    }
+    return lo;
+}
+
+//frames are decoded in a web worker (see frames.js), so a big one doesn't
+//hold up the page, and shown on the next animation frame.  every frame that
+//came in since the last animation frame is merged into one patch, so the page
+//only ever puts the newest drawing into the document, once per frame.
+var decoder = typeof Worker == "undefined" ? null : new Worker("js/frames.js");
+var pendingpatch = null;
+var framescheduled = false;
+
+if (decoder != null) {
+    decoder.onmessage = function (e) {
+        if (e.data != null) queuepatch(e.data);
+    };
+}
+
+//a binary frame, or the text of an "svgp" message
+function receiveframe(data) {
+    if (decoder != null) decoder.postMessage(data, typeof data == "string" ? [] : [data]);
+    else queuepatch(typeof data == "string" ? JSON.parse(data).payload : decodeframe(data));
+}
+
+function queuepatch(patch) {
+    pendingpatch = pendingpatch == null ? patch : mergepatches(pendingpatch, patch);
+    if (!framescheduled) {
+        framescheduled = true;
+        requestAnimationFrame(showframe);
+    }
+}
+
+function showframe() {
+    framescheduled = false;
+    var patch = pendingpatch;
+    pendingpatch = null;
+    if (patch != null) applypatch(patch);
+}
+
+//one patch that does what a and then b do: the last op for each key wins.
+//a keyframe replaces everything before it, and so does a patch that doesn't
+//follow on from a (applypatch then asks for the whole drawing again).
+function mergepatches(a, b) {
+    if (b.base == -1 || b.base != a.frame) return b;
+    var latest = new Map();
+    for (var i = 0; i < a.ops.length; i++) latest.set(a.ops[i][1], a.ops[i]);
+    for (var i = 0; i < b.ops.length; i++) latest.set(b.ops[i][1], b.ops[i]);
+    return {base: a.base, frame: b.frame, ops: Array.from(latest.values())};
+}
+
+function applypatch(patch) {
+    if (view == null) setview("svg");
+    if (patch.base == -1) {
+        drawing.keys = [];
+        drawing.items = {};
+        drawing.resync = false;
+        view.reset();
+    }
+    else if (patch.base != drawing.frame) {
+        //we missed a frame, ask for the whole drawing again:
+        if (!drawing.resync) sock.send(JSON.stringify({type: 'frame-resync'}));
+        drawing.resync = true;
+        return;
+    }
+
+    for (var i = 0; i < patch.ops.length; i++) {
+        var op = patch.ops[i], key = op[1];
+        var old = drawing.items[key];
+        if (op[0] == "u") {
+            var item = typeof op[2] == "string" ? {markup: op[2]} : {shape: op[2]};
+            drawing.items[key] = item;
+            if (old) {
+                view.replace(key, item, old);
+            }
+            else {
+                var index = drawingindex(key);
+                drawing.keys.splice(index, 0, key);
+                view.insert(key, item, index);
+            }
+        }
+        else if (op[0] == "r" && old) {
+            drawing.keys.splice(drawingindex(key), 1);
+            delete drawing.items[key];
+            view.remove(key, old);
+        }
+    }
+    drawing.frame = patch.frame;
+    view.present();
+
+    //acknowledge once the browser has actually shown the frame, so a slow
+    //browser holds the server back instead of piling up frames:
+    var shown = drawing.frame;
+    requestAnimationFrame(function () {
+        sock.send(JSON.stringify({type: 'frame-ack', frame: shown}));
+    });
+}
+
+//animations from WebLatte.animate.  the browser works out every frame itself
+//and tells the server when each one is done.  the server sends the animated
+//element on its own as markup, with the end value, right before the "anim"
+//message, so an animation waits until that markup is here, then sets the
+//attribute on its node every frame.  at the end the attribute gets the end
+//value, or whatever newer markup says if the program changed it meanwhile.
+var animations = [];
+var easings = {
+    "linear": function (t) { return t; },
+    "ease-in": function (t) { return t * t * t; },
+    "ease-out": function (t) { return 1 - Math.pow(1 - t, 3); },
+    "ease-in-out": function (t) { return t < 0.5 ? 4 * t * t * t : 1 - Math.pow(2 - 2 * t, 3) / 2; }
+};
+
+function animate(anim) {
+    anim.start = -1;
+    anim.item = null;
+    anim.changed = false;
+    animations.push(anim);
+    if (animations.length == 1) requestAnimationFrame(animationframe);
+}
+
+function animationframe(now) {
+    var changed = false;
+    for (var i = 0; i < animations.length; i++) {
+        var anim = animations[i], item = drawing.items[anim.key], done;
+        if (item == null || item.markup == null) {
+            done = anim.item != null; //it was taken out of the drawing
+        }
+        else {
+            var node = itemnode(item);
+            for (var j = 0; anim.path && j < anim.path.length; j++) node = node.children[anim.path[j]];
+            if (item != anim.item) {
+                if (anim.item != null) anim.changed = true; //newer markup than the one it started on
+                anim.item = item;
+                anim.base = node.getAttribute(anim.attr);
+            }
+            if (anim.start < 0) anim.start = now;
+            var t = anim.ms > 0 ? Math.min(1, (now - anim.start) / anim.ms) : 1;
+            done = t == 1;
+            if (!done) node.setAttribute(anim.attr, anim.from + (anim.to - anim.from) * easings[anim.easing](t));
+            else if (!anim.changed) node.setAttribute(anim.attr, anim.to);
+            else if (anim.base != null) node.setAttribute(anim.attr, anim.base);
+            else node.removeAttribute(anim.attr);
+            changed = true;
+        }
+        if (done) {
+            sock.send(JSON.stringify({type: 'anim-done', id: anim.id}));
+            animations.splice(i--, 1);
+        }
+    }
+    if (changed && view != null && view.redraw) view.redraw(); //svg nodes show the change by themselves
+    if (animations.length > 0) requestAnimationFrame(animationframe);
+}
+
+//switch to another view ("svg", "canvas" or "webgl") and show the drawing in it
+function setview(name) {
+    if (view != null) view.destroy();
+    view = name == "webgl" && glview.supported() ? glview
+        : name == "canvas" || name == "webgl" ? canvasview
+        : svgview;
+    view.reset();
+    for (var i = 0; i < drawing.keys.length; i++) {
+        view.insert(drawing.keys[i], drawing.items[drawing.keys[i]], i);
+    }
+    view.present();
+}
+
+function hexcolor(rgb) {
+    return "#" + (0x1000000 + rgb).toString(16).substring(1);
+}
+
+//a detached svg node for an item, built once and kept on the item
+function itemnode(item) {
+    if (item.node) return item.node;
+    if (item.markup != null) {
+        var parser = document.createElementNS(svgNS, "svg");
+        parser.innerHTML = item.markup;
+        item.node = parser.firstChild;
+    }
+    else {
+        item.node = shapenode(item.shape);
+    }
+    return item.node;
+}
+
+function rotation(node, rot, cx, cy) {
+    if (rot != 0) node.setAttribute("transform", "rotate(" + rot + " " + cx + " " + cy + ")");
+}
+
+//a batch is a group with one path for each run of shapes of the same color
+function batchnode(shape) {
+    var g = document.createElementNS(svgNS, "g");
+    var v = shape.v, stride = batchstride[shape.kind], n = shape.count;
+    var shared = v[n * stride];
+    for (var i = 0; i < n; ) {
+        var rgb = shape.colors[i], d = "";
+        for (var o = i * stride; i < n && shape.colors[i] == rgb; i++, o += stride) {
+            switch (shape.kind) {
+                case SHAPE_RECTS:
+                    if (v[o + 2] > 0 && v[o + 3] > 0) d += square(v[o], v[o + 1], v[o + 2], v[o + 3]);
+                    break;
+                case SHAPE_CIRCLES:
+                    var r = v[o + 2];
+                    if (r > 0) d += "M" + (v[o] - r) + " " + v[o + 1] + "a" + r + " " + r + " 0 1 0 " + (2 * r) + " 0a"
+                        + r + " " + r + " 0 1 0 " + (-2 * r) + " 0z";
+                    break;
+                case SHAPE_LINES:
+                    d += "M" + v[o] + " " + v[o + 1] + "L" + v[o + 2] + " " + v[o + 3];
+                    break;
+                case SHAPE_POINTS:
+                    if (shared > 0) d += square(v[o] - shared / 2, v[o + 1] - shared / 2, shared, shared);
+                    break;
+            }
+        }
+        var node = document.createElementNS(svgNS, "path");
+        if (shape.kind == SHAPE_LINES) {
+            node.setAttribute("fill", "none");
+            node.setAttribute("stroke", hexcolor(rgb));
+            node.setAttribute("stroke-width", shared);
+        } else {
+            node.setAttribute("fill", hexcolor(rgb));
+        }
+        node.setAttribute("d", d);
+        g.appendChild(node);
+    }
+    return g;
+}
+
+function square(x, y, w, h) {
+    return "M" + x + " " + y + "h" + w + "v" + h + "h" + (-w) + "z";
+}
+
+function shapenode(shape) {
+    var v = shape.v, node;
+    if (batchstride[shape.kind]) return batchnode(shape);
+    switch (shape.kind) {
+        case SHAPE_RECT:
+            node = document.createElementNS(svgNS, "rect");
+            node.setAttribute("x", v[0]);
+            node.setAttribute("y", v[1]);
+            node.setAttribute("width", v[2]);
+            node.setAttribute("height", v[3]);
+            node.setAttribute("fill", hexcolor(shape.color));
+            rotation(node, v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+            break;
+        case SHAPE_CIRCLE:
+            node = document.createElementNS(svgNS, "circle");
+            node.setAttribute("cx", v[0]);
+            node.setAttribute("cy", v[1]);
+            node.setAttribute("r", v[2]);
+            node.setAttribute("fill", hexcolor(shape.color));
+            break;
+        case SHAPE_ELLIPSE:
+            node = document.createElementNS(svgNS, "ellipse");
+            node.setAttribute("cx", v[0]);
+            node.setAttribute("cy", v[1]);
+            node.setAttribute("rx", v[2]);
+            node.setAttribute("ry", v[3]);
+            rotation(node, v[4], v[0], v[1]);
+            node.setAttribute("fill", hexcolor(shape.color));
+            break;
+        case SHAPE_LINE:
+            node = document.createElementNS(svgNS, "line");
+            node.setAttribute("x1", v[0]);
+            node.setAttribute("y1", v[1]);
+            node.setAttribute("x2", v[2]);
+            node.setAttribute("y2", v[3]);
+            node.setAttribute("stroke", hexcolor(shape.color));
+            node.setAttribute("stroke-width", v[4]);
+            break;
+        case SHAPE_TEXT:
+            node = document.createElementNS(svgNS, "text");
+            node.setAttribute("x", v[0]);
+            node.setAttribute("y", v[1]);
+            node.setAttribute("font-size", v[2]);
+            node.setAttribute("style", "fill: " + hexcolor(shape.color) + ";");
+            rotation(node, v[3], v[0], v[1]);
+            node.textContent = shape.text;
+            break;
+        case SHAPE_IMAGE:
+            node = document.createElementNS(svgNS, "image");
+            node.setAttribute("x", v[0]);
+            node.setAttribute("y", v[1]);
+            node.setAttribute("width", v[2]);
+            node.setAttribute("height", v[3]);
+            node.setAttributeNS(xlinkNS, "xlink:href", shape.text);
+            rotation(node, v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+            break;
+        case SHAPE_SPRITE:
+            //a noun: its cell of the atlas (see NounAtlas.java)
+            node = document.createElementNS(svgNS, "g");
+            rotation(node, v[4], v[0] + v[2] / 2, v[1] + v[3] / 2);
+            var svg = document.createElementNS(svgNS, "svg");
+            svg.setAttribute("x", v[0]);
+            svg.setAttribute("y", v[1]);
+            svg.setAttribute("width", v[2]);
+            svg.setAttribute("height", v[3]);
+            svg.setAttribute("viewBox", v[5] + " " + v[6] + " " + v[7] + " " + v[7]);
+            var image = document.createElementNS(svgNS, "image");
+            image.setAttribute("width", v[8]);
+            image.setAttribute("height", v[9]);
+            image.setAttributeNS(xlinkNS, "xlink:href", shape.text);
+            svg.appendChild(image);
+            node.appendChild(svg);
+            break;
+    }
+    return node;
+}
+
+function drawingcontainer() {
+    var content = document.createElement("div");
+    content.className = "content";
+    $('#user-svg').empty().append(content);
+    return content;
+}
+
+//one svg node per shape, the way the drawing has always been shown
+var svgview = {
+    root: null,
+    reset: function () {
+        this.root = document.createElementNS(svgNS, "svg");
+        this.root.setAttribute("id", "user-svg");
+        drawingcontainer().appendChild(this.root);
+    },
+    insert: function (key, item, index) {
+        var next = index + 1 < drawing.keys.length ? drawing.items[drawing.keys[index + 1]].node : null;
+        if (next && next.parentNode == this.root) this.root.insertBefore(itemnode(item), next);
+        else this.root.appendChild(itemnode(item));
+    },
+    replace: function (key, item, old) {
+        this.root.replaceChild(itemnode(item), old.node);
+    },
+    remove: function (key, old) {
+        this.root.removeChild(old.node);
+    },
+    present: function () {},
+    destroy: function () {
+        //the nodes stay on the items, in case we come back to svg
+    }
+};
+
+function makecanvas() {
+    var canvas = document.createElement("canvas");
+    canvas.style.position = "absolute";
+    canvas.style.left = "0px";
+    canvas.style.top = "0px";
+    canvas.style.width = "100%";
+    canvas.style.height = "100%";
+    canvas.style.zIndex = -1;
+    return canvas;
+}
+
+//make the canvas match the window, in device pixels
+function fitcanvas(canvas) {
+    var ratio = window.devicePixelRatio || 1;
+    var w = Math.round(document.documentElement.clientWidth * ratio);
+    var h = Math.round(document.documentElement.clientHeight * ratio);
+    if (canvas.width != w || canvas.height != h) {
+        canvas.width = w;
+        canvas.height = h;
+    }
+    return ratio;
+}
+
+var imagecache = {};
+function cachedimage(href, onload) {
+    var img = imagecache[href];
+    if (!img) {
+        img = imagecache[href] = new Image();
+        img.onload = onload;
+        img.src = href;
+    }
+    return img;
+}
+
+//draw one item on a 2d canvas
+function drawitem(ctx, item) {
+    if (item.shape) drawshape(ctx, item.shape);
+    else drawnode(ctx, itemnode(item));
+}
+
+function drawbatch(ctx, shape) {
+    var v = shape.v, stride = batchstride[shape.kind], n = shape.count;
+    var shared = v[n * stride];
+    ctx.save();
+    if (shape.kind == SHAPE_LINES) ctx.lineWidth = shared;
+    for (var i = 0, o = 0; i < n; i++, o += stride) {
+        ctx.fillStyle = ctx.strokeStyle = hexcolor(shape.colors[i]);
+        switch (shape.kind) {
+            case SHAPE_RECTS:
+                ctx.fillRect(v[o], v[o + 1], v[o + 2], v[o + 3]);
+                break;
+            case SHAPE_CIRCLES:
+                ctx.beginPath();
+                ctx.arc(v[o], v[o + 1], v[o + 2], 0, 2 * Math.PI);
+                ctx.fill();
+                break;
+            case SHAPE_LINES:
+                ctx.beginPath();
+                ctx.moveTo(v[o], v[o + 1]);
+                ctx.lineTo(v[o + 2], v[o + 3]);
+                ctx.stroke();
+                break;
+            case SHAPE_POINTS:
+                ctx.fillRect(v[o] - shared / 2, v[o + 1] - shared / 2, shared, shared);
+                break;
+        }
+    }
+    ctx.restore();
+}
+
+function drawshape(ctx, shape) {
+    var v = shape.v;
+    if (batchstride[shape.kind]) return drawbatch(ctx, shape);
+    ctx.save();
+    ctx.fillStyle = ctx.strokeStyle = hexcolor(shape.color);
+    switch (shape.kind) {
+        case SHAPE_RECT:
+            ctx.translate(v[0] + v[2] / 2, v[1] + v[3] / 2);
+            if (v[4] != 0) ctx.rotate(v[4] * Math.PI / 180);
+            ctx.fillRect(-v[2] / 2, -v[3] / 2, v[2], v[3]);
+            break;
+        case SHAPE_CIRCLE:
+            ctx.beginPath();
+            ctx.arc(v[0], v[1], v[2], 0, 2 * Math.PI);
+            ctx.fill();
+            break;
+        case SHAPE_ELLIPSE:
+            ctx.beginPath();
+            ctx.ellipse(v[0], v[1], v[2], v[3], v[4] * Math.PI / 180, 0, 2 * Math.PI);
+            ctx.fill();
+            break;
+        case SHAPE_LINE:
+            ctx.lineWidth = v[4];
+            ctx.beginPath();
+            ctx.moveTo(v[0], v[1]);
+            ctx.lineTo(v[2], v[3]);
+            ctx.stroke();
+            break;
+        case SHAPE_TEXT:
+            ctx.translate(v[0], v[1]);
+            if (v[3] != 0) ctx.rotate(v[3] * Math.PI / 180);
+            ctx.font = v[2] + "px serif";
+            ctx.fillText(shape.text, 0, 0);
+            break;
+        case SHAPE_IMAGE:
+            var img = cachedimage(shape.text, function () { view.present(); });
+            if (img.complete && img.naturalWidth > 0) {
+                ctx.translate(v[0] + v[2] / 2, v[1] + v[3] / 2);
+                if (v[4] != 0) ctx.rotate(v[4] * Math.PI / 180);
+                ctx.drawImage(img, -v[2] / 2, -v[3] / 2, v[2], v[3]);
+            }
+            break;
+        case SHAPE_SPRITE:
+            var atlas = cachedimage(shape.text, function () { view.present(); });
+            if (atlas.complete && atlas.naturalWidth > 0) {
+                //fitted into the box like an svg image: as big as it goes, centered
+                var size = Math.min(v[2], v[3]);
+                ctx.translate(v[0] + v[2] / 2, v[1] + v[3] / 2);
+                if (v[4] != 0) ctx.rotate(v[4] * Math.PI / 180);
+                ctx.drawImage(atlas, v[5], v[6], v[7], v[7], -size / 2, -size / 2, size, size);
+            }
+            break;
+    }
+    ctx.restore();
+}
+
+function nodestyle(node, name) {
+    var value = node.getAttribute(name);
+    var style = node.getAttribute("style");
+    if (style) {
+        var m = new RegExp("(^|;)\\s*" + name + "\\s*:\\s*([^;]+)").exec(style);
+        if (m) value = m[2].trim();
+    }
+    return value;
+}
+
+function num(node, name) {
+    return parseFloat(node.getAttribute(name)) || 0;
+}
+
+//draw any svg node on a 2d canvas.  covers the basic svg shapes, groups and
+//transforms; fancier svg (gradients, filters...) needs the svg view.
+function drawnode(ctx, node) {
+    if (node.nodeType != 1) return;
+    ctx.save();
+    if (node.transform && node.transform.baseVal.numberOfItems > 0) {
+        var m = node.transform.baseVal.consolidate().matrix;
+        ctx.transform(m.a, m.b, m.c, m.d, m.e, m.f);
+    }
+    var fill = nodestyle(node, "fill"), stroke = nodestyle(node, "stroke");
+    var opacity = nodestyle(node, "opacity");
+    if (opacity != null) ctx.globalAlpha *= parseFloat(opacity);
+    if (stroke != null) ctx.lineWidth = parseFloat(nodestyle(node, "stroke-width")) || 1;
+
+    var path = null;
+    switch (node.localName) {
+        case "svg":
+            //a nested svg: clipped to its box, with its viewBox fitted in
+            var w = num(node, "width"), h = num(node, "height");
+            ctx.translate(num(node, "x"), num(node, "y"));
+            if (w > 0 && h > 0) {
+                ctx.beginPath();
+                ctx.rect(0, 0, w, h);
+                ctx.clip();
+                var box = (node.getAttribute("viewBox") || "").trim().split(/[\s,]+/).map(Number);
+                if (box.length == 4 && box[2] > 0 && box[3] > 0) {
+                    var scale = Math.min(w / box[2], h / box[3]);
+                    ctx.translate((w - box[2] * scale) / 2, (h - box[3] * scale) / 2);
+                    ctx.scale(scale, scale);
+                    ctx.translate(-box[0], -box[1]);
+                }
+            }
+            for (var c = node.firstChild; c; c = c.nextSibling) drawnode(ctx, c);
+            break;
+        case "g":
+            for (var c = node.firstChild; c; c = c.nextSibling) drawnode(ctx, c);
+            break;
+        case "rect":
+            path = new Path2D();
+            path.rect(num(node, "x"), num(node, "y"), num(node, "width"), num(node, "height"));
+            break;
+        case "circle":
+            path = new Path2D();
+            path.arc(num(node, "cx"), num(node, "cy"), num(node, "r"), 0, 2 * Math.PI);
+            break;
+        case "ellipse":
+            path = new Path2D();
+            path.ellipse(num(node, "cx"), num(node, "cy"), num(node, "rx"), num(node, "ry"), 0, 0, 2 * Math.PI);
+            break;
+        case "line":
+            path = new Path2D();
+            path.moveTo(num(node, "x1"), num(node, "y1"));
+            path.lineTo(num(node, "x2"), num(node, "y2"));
+            fill = "none";
+            break;
+        case "polyline":
+        case "polygon":
+            var points = (node.getAttribute("points") || "").trim().split(/[\s,]+/);
+            path = new Path2D();
+            for (var i = 0; i + 1 < points.length; i += 2) {
+                if (i == 0) path.moveTo(+points[i], +points[i + 1]);
+                else path.lineTo(+points[i], +points[i + 1]);
+            }
+            if (node.localName == "polygon") path.closePath();
+            break;
+        case "path":
+            path = new Path2D(node.getAttribute("d") || "");
+            break;
+        case "text":
+            ctx.font = (num(node, "font-size") || 16) + "px serif";
+            ctx.fillStyle = fill || "black";
+            ctx.fillText(node.textContent, num(node, "x"), num(node, "y"));
+            break;
+        case "image":
+            var href = node.getAttributeNS(xlinkNS, "href") || node.getAttribute("xlink:href") || node.getAttribute("href");
+            var img = cachedimage(href, function () { view.present(); });
+            if (img.complete && img.naturalWidth > 0) {
+                ctx.drawImage(img, num(node, "x"), num(node, "y"), num(node, "width"), num(node, "height"));
+            }
+            break;
+    }
+    if (path != null) {
+        if (fill != "none") {
+            ctx.fillStyle = fill || "black";
+            ctx.fill(path);
+        }
+        if (stroke != null && stroke != "none") {
+            ctx.strokeStyle = stroke;
+            ctx.stroke(path);
+        }
+    }
+    ctx.restore();
+}
+
+//a canvas doesn't know which shape is where, so it sends where it was
+//clicked and the server finds the topmost clickable shape there
+function canvasclick(e) {
+    sock.send(JSON.stringify({type: "click-at", x: e.clientX, y: e.clientY}));
+}
+
+//everything painted onto one 2d canvas.  the whole canvas is redrawn on the
+//next animation frame after any change.
+var canvasview = {
+    canvas: null,
+    scheduled: false,
+    reset: function () {
+        this.canvas = makecanvas();
+        this.canvas.style.pointerEvents = "all";
+        this.canvas.addEventListener("click", canvasclick);
+        drawingcontainer().appendChild(this.canvas);
+    },
+    insert: function () {},
+    replace: function () {},
+    remove: function () {},
+    present: function () {
+        if (this.scheduled) return;
+        this.scheduled = true;
+        var self = this;
+        requestAnimationFrame(function () {
+            self.scheduled = false;
+            self.redraw();
+        });
+    },
+    redraw: function () {
+        if (view != this) return;
+        var ratio = fitcanvas(this.canvas);
+        var ctx = this.canvas.getContext("2d");
+        ctx.setTransform(1, 0, 0, 1, 0, 0);
+        ctx.clearRect(0, 0, this.canvas.width, this.canvas.height);
+        ctx.setTransform(ratio, 0, 0, ratio, 0, 0);
+        for (var i = 0; i < drawing.keys.length; i++) {
+            drawitem(ctx, drawing.items[drawing.keys[i]]);
+        }
+    },
+    destroy: function () {
+        $(this.canvas).remove();
+    }
+};
+
+//rectangles, circles, ellipses and lines drawn with webgl, all in a single
+//instanced draw call; each one is a quad, and circles and ellipses cut theirs
+//round in the fragment shader.  everything else (text, images, hand made svg)
+//goes on a 2d canvas on top.
+var GL_STRIDE = 9; //cx, cy, half width, half height, angle, r, g, b, round
+var glview = {
+    canvas: null,
+    overlay: null,
+    gl: null,
+    scheduled: false,
+    instances: new Float32Array(GL_STRIDE * 1024),
+    supported: function () {
+        return !!document.createElement("canvas").getContext("webgl2");
+    },
+    reset: function () {
+        var container = drawingcontainer();
+        this.canvas = makecanvas();
+        this.overlay = makecanvas();
+        this.overlay.style.pointerEvents = "all";
+        this.overlay.addEventListener("click", canvasclick);
+        container.appendChild(this.canvas);
+        container.appendChild(this.overlay);
+        this.gl = this.canvas.getContext("webgl2", {premultipliedAlpha: false});
+        this.setup(this.gl);
+    },
+    setup: function (gl) {
+        var vs = "#version 300 es\n" +
+            "in vec2 corner; in vec4 box; in float angle; in vec3 color; in float round;\n" +
+            "uniform vec2 screen;\n" +
+            "out vec2 local; out vec3 vcolor; out float vround;\n" +
+            "void main() {\n" +
+            "  vec2 p = corner * box.zw;\n" +
+            "  float c = cos(angle), s = sin(angle);\n" +
+            "  p = vec2(p.x * c - p.y * s, p.x * s + p.y * c) + box.xy;\n" +
+            "  gl_Position = vec4(p.x / screen.x * 2.0 - 1.0, 1.0 - p.y / screen.y * 2.0, 0.0, 1.0);\n" +
+            "  local = corner; vcolor = color; vround = round;\n" +
+            "}";
+        var fs = "#version 300 es\n" +
+            "precision mediump float;\n" +
+            "in vec2 local; in vec3 vcolor; in float vround;\n" +
+            "out vec4 outcolor;\n" +
+            "void main() {\n" +
+            "  if (vround > 0.5 && dot(local, local) > 1.0) discard;\n" +
+            "  outcolor = vec4(vcolor, 1.0);\n" +
+            "}";
+        var program = gl.createProgram();
+        [[gl.VERTEX_SHADER, vs], [gl.FRAGMENT_SHADER, fs]].forEach(function (s) {
+            var shader = gl.createShader(s[0]);
+            gl.shaderSource(shader, s[1]);
+            gl.compileShader(shader);
+            gl.attachShader(program, shader);
+        });
+        gl.linkProgram(program);
+        gl.useProgram(program);
+        this.program = program;
+        this.screen = gl.getUniformLocation(program, "screen");
+
+        this.vao = gl.createVertexArray();
+        gl.bindVertexArray(this.vao);
+        var quad = gl.createBuffer();
+        gl.bindBuffer(gl.ARRAY_BUFFER, quad);
+        gl.bufferData(gl.ARRAY_BUFFER, new Float32Array([-1, -1, 1, -1, -1, 1, 1, 1]), gl.STATIC_DRAW);
+        var corner = gl.getAttribLocation(program, "corner");
+        gl.enableVertexAttribArray(corner);
+        gl.vertexAttribPointer(corner, 2, gl.FLOAT, false, 0, 0);
+
+        this.buffer = gl.createBuffer();
+        gl.bindBuffer(gl.ARRAY_BUFFER, this.buffer);
+        var offset = 0;
+        [["box", 4], ["angle", 1], ["color", 3], ["round", 1]].forEach(function (a) {
+            var loc = gl.getAttribLocation(program, a[0]);
+            gl.enableVertexAttribArray(loc);
+            gl.vertexAttribPointer(loc, a[1], gl.FLOAT, false, GL_STRIDE * 4, offset * 4);
+            gl.vertexAttribDivisor(loc, 1);
+            offset += a[1];
+        });
+    },
+    insert: function () {},
+    replace: function () {},
+    remove: function () {},
+    present: canvasview.present,
+    redraw: function () {
+        if (view != this) return;
+        var ratio = fitcanvas(this.canvas);
+        fitcanvas(this.overlay);
+        var ctx = this.overlay.getContext("2d");
+        ctx.setTransform(1, 0, 0, 1, 0, 0);
+        ctx.clearRect(0, 0, this.overlay.width, this.overlay.height);
+        ctx.setTransform(ratio, 0, 0, ratio, 0, 0);
+
+        var count = 0;
+        for (var i = 0; i < drawing.keys.length; i++) {
+            var item = drawing.items[drawing.keys[i]];
+            var shape = item.shape;
+            if (shape && batchstride[shape.kind]) {
+                this.reserve(count + shape.count);
+                this.batch(this.instances, count * GL_STRIDE, shape);
+                count += shape.count;
+                continue;
+            }
+            if (!shape || shape.kind > SHAPE_LINE) {
+                drawitem(ctx, item);
+                continue;
+            }
+            this.reserve(count + 1);
+            this.instance(this.instances, count++ * GL_STRIDE, shape);
+        }
+
+        var gl = this.gl;
+        gl.viewport(0, 0, this.canvas.width, this.canvas.height);
+        gl.clearColor(0, 0, 0, 0);
+        gl.clear(gl.COLOR_BUFFER_BIT);
+        if (count == 0) return;
+        gl.useProgram(this.program);
+        gl.bindVertexArray(this.vao);
+        gl.uniform2f(this.screen, this.canvas.width / ratio, this.canvas.height / ratio);
+        gl.bindBuffer(gl.ARRAY_BUFFER, this.buffer);
+        gl.bufferData(gl.ARRAY_BUFFER, this.instances.subarray(0, count * GL_STRIDE), gl.DYNAMIC_DRAW);
+        gl.drawArraysInstanced(gl.TRIANGLE_STRIP, 0, 4, count);
+    },
+    reserve: function (count) {
+        if (count * GL_STRIDE <= this.instances.length) return;
+        var bigger = new Float32Array(Math.max(this.instances.length * 2, count * GL_STRIDE));
+        bigger.set(this.instances);
+        this.instances = bigger;
+    },
+    batch: function (out, o, shape) {
+        var v = shape.v, stride = batchstride[shape.kind], n = shape.count;
+        var shared = v[n * stride];
+        for (var i = 0, b = 0; i < n; i++, b += stride, o += GL_STRIDE) {
+            switch (shape.kind) {
+                case SHAPE_RECTS:
+                    out[o] = v[b] + v[b + 2] / 2; out[o + 1] = v[b + 1] + v[b + 3] / 2;
+                    out[o + 2] = v[b + 2] / 2; out[o + 3] = v[b + 3] / 2;
+                    out[o + 8] = 0;
+                    break;
+                case SHAPE_CIRCLES:
+                    out[o] = v[b]; out[o + 1] = v[b + 1];
+                    out[o + 2] = out[o + 3] = v[b + 2];
+                    out[o + 8] = 1;
+                    break;
+                case SHAPE_LINES:
+                    var dx = v[b + 2] - v[b], dy = v[b + 3] - v[b + 1];
+                    out[o] = (v[b] + v[b + 2]) / 2; out[o + 1] = (v[b + 1] + v[b + 3]) / 2;
+                    out[o + 2] = Math.sqrt(dx * dx + dy * dy) / 2; out[o + 3] = shared / 2;
+                    out[o + 8] = 0;
+                    break;
+                case SHAPE_POINTS:
+                    out[o] = v[b]; out[o + 1] = v[b + 1];
+                    out[o + 2] = out[o + 3] = shared / 2;
+                    out[o + 8] = 0;
+                    break;
+            }
+            out[o + 4] = shape.kind == SHAPE_LINES ? Math.atan2(dy, dx) : 0;
+            var color = shape.colors[i];
+            out[o + 5] = (color >> 16 & 255) / 255;
+            out[o + 6] = (color >> 8 & 255) / 255;
+            out[o + 7] = (color & 255) / 255;
+        }
+    },
+    instance: function (out, o, shape) {
+        var v = shape.v;
+        switch (shape.kind) {
+            case SHAPE_RECT:
+                out[o] = v[0] + v[2] / 2; out[o + 1] = v[1] + v[3] / 2;
+                out[o + 2] = v[2] / 2; out[o + 3] = v[3] / 2;
+                out[o + 4] = v[4] * Math.PI / 180; out[o + 8] = 0;
+                break;
+            case SHAPE_CIRCLE:
+                out[o] = v[0]; out[o + 1] = v[1];
+                out[o + 2] = out[o + 3] = v[2];
+                out[o + 4] = 0; out[o + 8] = 1;
+                break;
+            case SHAPE_ELLIPSE:
+                out[o] = v[0]; out[o + 1] = v[1];
+                out[o + 2] = v[2]; out[o + 3] = v[3];
+                out[o + 4] = v[4] * Math.PI / 180; out[o + 8] = 1;
+                break;
+            case SHAPE_LINE:
+                var dx = v[2] - v[0], dy = v[3] - v[1];
+                out[o] = (v[0] + v[2]) / 2; out[o + 1] = (v[1] + v[3]) / 2;
+                out[o + 2] = Math.sqrt(dx * dx + dy * dy) / 2; out[o + 3] = v[4] / 2;
+                out[o + 4] = Math.atan2(dy, dx); out[o + 8] = 0;
+                break;
+        }
+        out[o + 5] = (shape.color >> 16 & 255) / 255;
+        out[o + 6] = (shape.color >> 8 & 255) / 255;
+        out[o + 7] = (shape.color & 255) / 255;
+    },
+    destroy: function () {
+        $(this.canvas).remove();
+        $(this.overlay).remove();
+    }
+};
+
+$(window).resize(function () {
+    if (view != null) view.present();
+});
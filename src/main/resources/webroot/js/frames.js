@@ -0,0 +1,100 @@
+//decoder for the binary frame format (see BinaryWriter.java).
+//turns a binary frame into the same patch that an "svgp" message carries,
+//except that drawn shapes come as {kind, v, color, text} (batches as
+//{kind, count, v, colors}) instead of markup,
+//so each view (see drawing.js) can show them however suits it best.
+
+var FRAME_MAGIC = 0x3142544c;
+var FRAME_KEYFRAME = 1;
+var OP_REMOVE = 0, OP_MARKUP = 64;
+var SHAPE_RECT = 1, SHAPE_CIRCLE = 2, SHAPE_ELLIPSE = 3, SHAPE_LINE = 4, SHAPE_TEXT = 5, SHAPE_IMAGE = 6;
+var SHAPE_RECTS = 7, SHAPE_CIRCLES = 8, SHAPE_LINES = 9, SHAPE_POINTS = 10, SHAPE_SPRITE = 11;
+
+//how many numbers each shape kind carries
+var shapefloats = {1: 5, 2: 3, 3: 5, 4: 5, 5: 4, 6: 5, 11: 10};
+//a batch's numbers per shape, and the numbers all its shapes share (see Shape.java)
+var batchstride = {7: 4, 8: 3, 9: 4, 10: 2};
+var batchshared = {7: 0, 8: 0, 9: 1, 10: 1};
+
+var utf8 = new TextDecoder("utf-8");
+
+function decodeframe(buffer) {
+    var header = new Int32Array(buffer, 0, 8);
+    if (header[0] != FRAME_MAGIC) throw "not a latte frame";
+    var nops = header[4], nfloats = header[5], ncolors = header[6], ntexts = header[7];
+
+    var pos = 32;
+    var keys = new Int32Array(buffer, pos, nops);
+    pos += 4 * nops;
+    var floats = new Float32Array(buffer, pos, nfloats);
+    pos += 4 * nfloats;
+    var colors = new Uint32Array(buffer, pos, ncolors);
+    pos += 4 * ncolors;
+    var lengths = new Uint32Array(buffer, pos, ntexts);
+    pos += 4 * ntexts;
+    var opcodes = new Uint8Array(buffer, pos, nops);
+    pos += nops;
+    var bytes = new Uint8Array(buffer, pos);
+
+    var fi = 0, ci = 0, ti = 0, tpos = 0;
+    function nexttext() {
+        var s = utf8.decode(bytes.subarray(tpos, tpos + lengths[ti]));
+        tpos += lengths[ti++];
+        return s;
+    }
+
+    var ops = [];
+    for (var i = 0; i < nops; i++) {
+        var kind = opcodes[i];
+        if (kind == OP_REMOVE) {
+            ops.push(["r", keys[i]]);
+        }
+        else if (kind == OP_MARKUP) {
+            ops.push(["u", keys[i], nexttext()]);
+        }
+        else if (batchstride[kind]) {
+            var count = floats[fi++];
+            var nfloats = count * batchstride[kind] + batchshared[kind];
+            ops.push(["u", keys[i], {
+                kind: kind,
+                count: count,
+                v: floats.subarray(fi, fi + nfloats),
+                colors: colors.subarray(ci, ci + count)
+            }]);
+            fi += nfloats;
+            ci += count;
+        }
+        else {
+            var shape = {
+                kind: kind,
+                v: floats.subarray(fi, fi + shapefloats[kind]),
+                color: kind == SHAPE_IMAGE || kind == SHAPE_SPRITE ? 0 : colors[ci++],
+                text: kind == SHAPE_TEXT || kind == SHAPE_IMAGE || kind == SHAPE_SPRITE ? nexttext() : null
+            };
+            ops.push(["u", keys[i], shape]);
+            fi += shapefloats[kind];
+        }
+    }
+
+    return {
+        base: (header[1] & FRAME_KEYFRAME) ? -1 : header[2],
+        frame: header[3],
+        ops: ops
+    };
+}
+
+//in a web worker (see receiveframe in drawing.js) this file decodes frames off
+//the page's thread: binary frames and the text of "svgp" messages come in, and
+//patches go back, in the same order.  a binary frame's buffer goes back with
+//its patch, which still points into it.
+if (typeof importScripts == "function") {
+    onmessage = function (e) {
+        try {
+            if (typeof e.data == "string") postMessage(JSON.parse(e.data).payload);
+            else postMessage(decodeframe(e.data), [e.data]);
+        } catch (ex) {
+            console.log(ex);
+            postMessage(null); //the next frame won't follow on, and the drawing is asked for again
+        }
+    };
+}
@@ -1,5 +1,6 @@
 wsUri =  "ws://localhost:8081/websocket";
 var sock = new WebSocket(wsUri);
+sock.binaryType = "arraybuffer"; //binary messages are frames, see frames.js
 
     sock.onopen = function (event) {
         startednoty = noty({
@@ -20,33 +21,50 @@ var sock = new WebSocket(wsUri);
         $(window).resize();
     };
     sock.onmessage = function (event) {
+        //frames are decoded off the page's thread, see receiveframe in drawing.js
+        if (event.data instanceof ArrayBuffer || event.data.lastIndexOf('{"type":"svgp"', 0) == 0) {
+            receiveframe(event.data);
+            return;
+        }
         message = JSON.parse(event.data);
 
-        if (message.type == "svgt") {
-            //the svg gets updated using reactjs:
-            var root = React.createElement("div", {
-                className: "content",
-                dangerouslySetInnerHTML: {__html: message.payload},
-            });
-            ReactDOM.render(root, document.getElementById('user-svg'));
-            refreshhandler(); //for click handlers
-            //consider adding keys if people get massive slowdown
+        if (message.type == "rndr") {  //renderer, see drawing.js
+            setview(message.payload);
+        }
+        else if (message.type == "anim") {  //see drawing.js
+            animate(message.payload);
+        }
+        else if (message.type == "dict") {
+            //only there to prime the socket's compression, nothing to do
+        }
+        else if (message.type == "cbat") {  //console batch, see ConsoleBuffer.java
+            consolebatch(message.payload);
         }
         else if (message.type == "cout") {
-            consoleout(message.payload);
+            consolebatch({lines: [message.payload], dropped: 0});
         }
         else if (message.type == "coin") {
             consolein();
         }
         else if (message.type == "cocl") {  //console clear
-            $('div.console').empty();
+            consolelines = [];
+            consoleheights = [];
+            consolevalid = 0;
+            $('div.console-input').remove();
+            consoleupdate();
         }
         else if (message.type == "cldi") {  //clear div
             $('div.content').empty();
+            widgets = {};
+        }
+        else if (message.type == "wadd") {  //a new control, see WidgetTree.java
+            addwidget(message.payload);
+        }
+        else if (message.type == "wupd") {  //the properties of controls that changed
+            for (var id in message.payload) updatewidget(id, message.payload[id]);
         }
         else if (message.type == "html") {
             $('div.content').append(message.payload);
-            refreshhandler();
         }
         else if (message.type == "logi") {
             $('#loginmodal').modal({
@@ -55,15 +73,8 @@ var sock = new WebSocket(wsUri);
                 showClose: false,
                 fadeDuration: 100
             });
-            $("#loginbtn").on('click', function (e) {
-                if ($('input#username').val() != "") {
-                    $.modal.close();
-                    sock.send("{\"type\": login-success}");
-                }  //for now, any content will do.
-                //todo: replace with actual auth.
-            })
         }
-        else if (messagetype == "titl") {
+        else if (message.type == "titl") {
             document.title = message.payload;
         }
         else {
@@ -126,34 +137,155 @@ $( function() {
 
 
 
-function refreshhandler() {
-    $('input').on('input', function () {
-        const json = JSON.stringify({
-            type: 'input',
-            name: $(this).context.name,
-            val: $(this).val()
-        });
-        sock.send(json);
-    });
-    $('.clickable').click(function() {
-       sock.send("{\"type\":click, \"name\":" + $(this).attr('name') +"}");
-    });
-    $('input.in').keypress(function(e) {
-        if(e.which == 13) {
-            sock.send("{\"type\":in-enter}");
-            $('input.in').replaceWith($('input.in').val());
-        }
+//the inputs and buttons from addInput and addButton, by id
+var widgets = {};
+
+function addwidget(w) {
+    var node = w.kind == "button" ? $('<button type="button" class="clickable"></button>')
+        : $('<input type="text">');
+    node.attr('name', w.name).css({position: 'fixed', 'pointer-events': 'all'});
+    $('div.content').append(node);
+    widgets[w.id] = node[0];
+    updatewidget(w.id, w);
+}
+
+//set the properties that changed, and only those
+function updatewidget(id, changes) {
+    var node = widgets[id];
+    if (node == null) return;
+    if (changes.removed) {
+        $(node).remove();
+        delete widgets[id];
+        return;
+    }
+    if (changes.label != null) {
+        if (node.tagName == "BUTTON") node.textContent = changes.label;
+        else node.placeholder = changes.label;
+    }
+    if (changes.x != null) node.style.left = changes.x + "px";
+    if (changes.y != null) node.style.top = changes.y + "px";
+    if (changes.value != null) node.value = changes.value;
+    if (changes.enabled != null) node.disabled = !changes.enabled;
+}
+
+//one listener per kind of event, on the document, for everything on the page
+//now and later: clickable shapes, inputs, the console and the login box
+$(document).on('input', 'input', function () {
+    const json = JSON.stringify({
+        type: 'input',
+        name: this.name,
+        val: $(this).val()
     });
+    sock.send(json);
+});
+$(document).on('click', '.clickable', function () {
+    sock.send(JSON.stringify({type: 'click', name: $(this).attr('name')}));
+});
+$(document).on('keypress', 'input.in', function (e) {
+    if (e.which == 13) {
+        sock.send(JSON.stringify({type: 'in-enter'}));
+        consoleline("&lt;", $('<div>').text($(this).val()).html());
+        $(this).closest('div.console-input').remove();
+        consoleupdate();
+    }
+});
+$(document).on('click', '#loginbtn', function () {
+    if ($('input#username').val() != "") {
+        $.modal.close();
+        sock.send(JSON.stringify({type: 'login-success'}));
+    }  //for now, any content will do.
+    //todo: replace with actual auth.
+});
+
+//the console keeps every line printed (the newest CONSOLE_LINES of them), but
+//only the rows that can be seen are in the page, so printing a lot costs
+//pushing strings onto an array, and the page stays small.  a row is taken to
+//be CONSOLE_ROW high until it has been shown and measured, so a line of tall
+//html (or of several lines) gets the room it needs once it is scrolled to.
+var CONSOLE_LINES = 100000;
+var CONSOLE_ROW = 18; //pixels, a row of plain text, see div.console-element in index.html
+var consolelines = [];
+var consoleheights = []; //measured, by line; missing until it was shown
+var consoletops = [0];   //where each line starts, right up to line consolevalid
+var consolevalid = 0;
+var consolescheduled = false;
+
+function consolebatch(batch) {
+    if (batch.dropped > 0) consoleline("&hellip;", "<i>" + batch.dropped + " lines printed too fast to show</i>");
+    for (var i = 0; i < batch.lines.length; i++) consoleline("&gt;", batch.lines[i]);
+    consoleupdate();
 }
 
-function consoleout(txt) {
-    $('div.console').append("<div class=\"console-element\"><span class=\"console-symbol\">&gt;&nbsp;</span>" + txt + "</div>");
+function consoleline(symbol, html) {
+    consolelines.push("<span class=\"console-symbol\">" + symbol + "&nbsp;</span>" + html);
+    if (consolelines.length > CONSOLE_LINES + 1000) {
+        var n = consolelines.length - CONSOLE_LINES;
+        consolelines.splice(0, n);
+        consoleheights.splice(0, n);
+        consolevalid = 0;
+    }
 }
+
+//where line i starts: the lines before it one after the other
+function consoletop(i) {
+    for (; consolevalid < i; consolevalid++) {
+        var h = consoleheights[consolevalid];
+        consoletops[consolevalid + 1] = consoletops[consolevalid] + (h == null ? CONSOLE_ROW : h);
+    }
+    return consoletops[i];
+}
+
+//the first line that ends below y
+function consolefind(y) {
+    var lo = 0, hi = consolelines.length;
+    consoletop(hi);
+    while (lo < hi) {
+        var mid = (lo + hi) >> 1;
+        if (consoletops[mid + 1] <= y) lo = mid + 1;
+        else hi = mid;
+    }
+    return lo;
+}
+
+//draw the rows in view on the next animation frame
+function consoleupdate() {
+    if (consolescheduled) return;
+    consolescheduled = true;
+    requestAnimationFrame(consolerender);
+}
+
+function consolerender() {
+    consolescheduled = false;
+    var rows = $('div.console-lines');
+    if (rows.length == 0) rows = $('<div class="console-lines"></div>').prependTo('div.console');
+    rows.css('height', consoletop(consolelines.length) + "px");
+    var top = rows[0].getBoundingClientRect().top;
+    var first = Math.max(0, consolefind(-top) - 10);
+    var last = Math.min(consolelines.length, consolefind(window.innerHeight - top) + 10);
+    var html = [];
+    for (var i = first; i < last; i++) {
+        html.push("<div class=\"console-element\" style=\"top:" + consoletop(i) + "px\">" + consolelines[i] + "</div>");
+    }
+    rows[0].innerHTML = html.join("");
+
+    //rows that turn out taller (or shorter) than thought move what is below them
+    var nodes = rows[0].children, changed = false;
+    for (var i = first; i < last; i++) {
+        var h = nodes[i - first].offsetHeight;
+        if (consoleheights[i] === h) continue;
+        consoleheights[i] = h;
+        consolevalid = Math.min(consolevalid, i);
+        changed = true;
+    }
+    if (changed) consoleupdate();
+}
+
+$(window).on('scroll resize', consoleupdate);
+
 function consolein(txt) {
-    $('div.console').append("<div class=\"console-element\">" +
+    $('div.console').append("<div class=\"console-element console-input\">" +
         "<span class=\"console-symbol\">&lt;&nbsp;</span>" +
         "<input name=\"in\" class=\"in\" on></div>");
-    refreshhandler();
     $('input.in').trigger('input'); //clear the text
     $('input.in').focus();
 }
@@ -0,0 +1,23 @@
+package lattelib;
+
+import org.w3c.dom.Element;
+
+/**
+ * a ball sliding back and forth, animated by the browser: one message per slide
+ */
+public class AnimateTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+
+        Element ball = frame.drawCircle(100, 300, 30, ColorLatte.Tomato);
+        frame.paint();
+        double from = 100, to = 700;
+        while(true) {
+            frame.animate(ball, "cx", from, to, 1500, "ease-in-out").await();
+            double t = from;
+            from = to;
+            to = t;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package lattelib;
+
+/**
+ * thousands of bouncing particles, kept in arrays and drawn in one call
+ */
+public class BatchTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+        frame.setRenderer("webgl");
+
+        int n = 5000;
+        double[] x = new double[n], y = new double[n], r = new double[n];
+        double[] vx = new double[n], vy = new double[n];
+        int[] rgb = new int[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = Math.random() * 800;
+            y[i] = Math.random() * 600;
+            r[i] = 2 + Math.random() * 4;
+            vx[i] = Math.random() * 4 - 2;
+            vy[i] = Math.random() * 4 - 2;
+            rgb[i] = (int) (Math.random() * 0xffffff);
+        }
+
+        while(true) {
+            for (int i = 0; i < n; i++) {
+                x[i] += vx[i];
+                y[i] += vy[i];
+                if(x[i] < 0 || x[i] > 800) vx[i] = -vx[i];
+                if(y[i] < 0 || y[i] > 600) vy[i] = -vy[i];
+            }
+            frame.clearPaint();
+            frame.drawRectangles(new double[]{0}, new double[]{0}, new double[]{800}, new double[]{600}, new int[]{0xf0f8ff});
+            frame.drawCircles(x, y, r, rgb);
+            frame.drawText(Math.round(frame.getFrameRate()) + " fps", 10, 30, 20, 0, ColorLatte.BLACK);
+            frame.paint();
+        }
+    }
+}
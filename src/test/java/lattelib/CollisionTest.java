@@ -0,0 +1,41 @@
+package lattelib;
+
+import org.w3c.dom.Element;
+
+/**
+ * bouncing balls that turn red while they touch another one
+ */
+public class CollisionTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+
+        int n = 300;
+        Element[] balls = new Element[n];
+        double[] x = new double[n], y = new double[n], vx = new double[n], vy = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = Math.random() * 800;
+            y[i] = Math.random() * 600;
+            vx[i] = Math.random() * 4 - 2;
+            vy[i] = Math.random() * 4 - 2;
+            balls[i] = frame.drawCircle(x[i], y[i], 8, ColorLatte.Aqua);
+        }
+
+        while(true) {
+            for (int i = 0; i < n; i++) {
+                x[i] += vx[i];
+                y[i] += vy[i];
+                if(x[i] < 0 || x[i] > 800) vx[i] = -vx[i];
+                if(y[i] < 0 || y[i] > 600) vy[i] = -vy[i];
+                balls[i].setAttribute("cx", "" + x[i]);
+                balls[i].setAttribute("cy", "" + y[i]);
+                balls[i].setAttribute("fill", ColorLatte.Aqua.toString());
+            }
+            for (Element[] pair : frame.collisions()) {
+                pair[0].setAttribute("fill", ColorLatte.Tomato.toString());
+                pair[1].setAttribute("fill", ColorLatte.Tomato.toString());
+            }
+            frame.paint(30);
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package lattelib;
+
+import org.w3c.dom.Element;
+
+/**
+ * a ball crossing the window at the same speed however fast the frames are,
+ * with the frame times printed every couple of seconds
+ */
+public class GameLoopTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+        Element ball = frame.drawCircle(0, 300, 20, ColorLatte.Tomato);
+
+        frame.run(new WebLatte.FrameCallback() {
+            double x, previousX, speed = 200; //pixels a second
+            int steps;
+
+            public void update(double dt) {
+                previousX = x;
+                x += speed * dt;
+                if(x < 0 || x > 800) speed = -speed;
+                if(++steps % 120 == 0) {
+                    frame.println(String.format("median %.2fms, 99th percentile %.2fms, %d frames left out",
+                            frame.getFrameTime(50), frame.getFrameTime(99), frame.getSkippedFrames()));
+                }
+            }
+
+            public void render(double alpha) {
+                ball.setAttribute("cx", "" + (previousX + (x - previousX) * alpha));
+            }
+        });
+    }
+}
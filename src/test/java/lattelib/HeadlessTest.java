@@ -0,0 +1,29 @@
+package lattelib;
+
+/**
+ * draws without a browser and writes the result to headless.png
+ */
+public class HeadlessTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = WebLatte.headless(400, 300);
+
+        frame.drawRectangle(20, 20, 150, 100, 15, ColorLatte.CornflowerBlue);
+        frame.drawCircle(250, 80, 50, ColorLatte.Tomato);
+        frame.drawLine(20, 280, 380, 180, 4, ColorLatte.DarkGreen);
+        frame.drawText("headless", 150, 200, 40, 0, ColorLatte.BLACK);
+        frame.drawNoun("Dog-Symbol", 300, 200, 80, 80, 0);
+        frame.drawSVGElement("<polygon points=\"50,250 90,170 130,250\" style=\"fill: gold; stroke: black\"/>");
+        frame.drawPoints(new double[]{300, 320, 340}, new double[]{20, 30, 40}, 6, new int[]{0x8a2be2});
+        frame.paint();
+
+        long t = System.nanoTime();
+        int frames = 100;
+        for (int i = 0; i < frames; i++) {
+            frame.renderPixels();
+        }
+        frame.println(frames * 1e9 / (System.nanoTime() - t) + " frames per second");
+
+        frame.writePNG("headless.png");
+    }
+}
@@ -0,0 +1,31 @@
+package lattelib;
+
+/**
+ * a grid drawn once in its own layer, with a ball bouncing over it
+ */
+public class LayerTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+
+        frame.setLayer("grid");
+        for (int x = 0; x <= 800; x += 20) {
+            frame.drawLine(x, 0, x, 600, 1, ColorLatte.LightGray);
+        }
+        for (int y = 0; y <= 600; y += 20) {
+            frame.drawLine(0, y, 800, y, 1, ColorLatte.LightGray);
+        }
+
+        frame.setLayer("ball");
+        double x = 100, y = 100, vx = 4, vy = 3;
+        while(true) {
+            x += vx;
+            y += vy;
+            if(x < 20 || x > 780) vx = -vx;
+            if(y < 20 || y > 580) vy = -vy;
+            frame.clearLayer("ball");
+            frame.drawCircle(x, y, 20, ColorLatte.Tomato);
+            frame.paint();
+        }
+    }
+}
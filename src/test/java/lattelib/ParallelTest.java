@@ -0,0 +1,43 @@
+package lattelib;
+
+import org.w3c.dom.Element;
+
+/**
+ * particles moved and drawn on every cpu at once, one slice of them per part.
+ * the first particle is changed after it is drawn: bigger, gold and clickable
+ */
+public class ParallelTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+
+        int n = 20000, parts = Runtime.getRuntime().availableProcessors();
+        double[] x = new double[n], y = new double[n], vx = new double[n], vy = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = Math.random() * 800;
+            y[i] = Math.random() * 600;
+            vx[i] = Math.random() * 4 - 2;
+            vy[i] = Math.random() * 4 - 2;
+        }
+
+        while(true) {
+            frame.clearPaint();
+            frame.drawInParallel(parts, part -> {
+                for (int i = part * n / parts; i < (part + 1) * n / parts; i++) {
+                    x[i] += vx[i];
+                    y[i] += vy[i];
+                    if(x[i] < 0 || x[i] > 800) vx[i] = -vx[i];
+                    if(y[i] < 0 || y[i] > 600) vy[i] = -vy[i];
+                    Element particle = frame.drawCircle(x[i], y[i], 3, part % 2 == 0 ? ColorLatte.Tomato : ColorLatte.BLUE);
+                    if(i == 0) {
+                        particle.setAttribute("r", "12");
+                        particle.setAttribute("fill", ColorLatte.Gold.toString());
+                        WebLatte.makeClickable(particle, "gold");
+                    }
+                }
+            });
+            frame.paint();
+            if("gold".equals(frame.nextClick(1))) frame.println("you caught the gold particle");
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package lattelib;
+
+/**
+ * a million step random walk plotted over the whole window; resize the window
+ * and it is fitted again
+ */
+public class PlotTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+
+        int n = 1000000;
+        double[] xs = new double[n], ys = new double[n];
+        for (int i = 1; i < n; i++) {
+            xs[i] = i;
+            ys[i] = ys[i - 1] + Math.random() - 0.5;
+        }
+        frame.plot(xs, ys, 1, ColorLatte.BLUE);
+        while(true) {
+            frame.paint();
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package lattelib;
+
+/**
+ * a button that counts its clicks on its own label, and moves out of the way
+ * every ten of them
+ */
+public class WidgetTest {
+
+    public static void main(String[] args) {
+        WebLatte frame = new WebLatte();
+        WebLatte.Widget button = frame.addButton("count", 100, 100);
+        WebLatte.Widget reset = frame.addButton("reset", 100, 140);
+        reset.setEnabled(false);
+
+        int clicks = 0;
+        while(true) {
+            String name = frame.nextClick();
+            clicks = name.equals("reset") ? 0 : clicks + 1;
+            button.setLabel("clicked " + clicks + " times");
+            button.setPosition(100 + (clicks / 10) * 50, 100);
+            reset.setEnabled(clicks > 0);
+        }
+    }
+}